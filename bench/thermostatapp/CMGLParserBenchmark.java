@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Parsing of canned AT+CMGL listings, as SMSGateway.getAllMessages does it,
+ * in text and PDU mode.
+ *
+ * @author Ste
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CMGLParserBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    public int iMessages;
+
+    @Param({"false", "true"})
+    public boolean iPDUMode;
+
+    private byte[] iListing;
+    private final CMGLParser iParser = new CMGLParser();
+    private int iCount;
+    private final SMSListener iCounter = new SMSListener() {
+        @Override
+        public void smsReceived(SMS aSMS) {
+            iCount++;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        SimpleDateFormat tFormat = new SimpleDateFormat("yy/MM/dd,HH:mm:ss");
+        PDUEncoder tEncoder = new PDUEncoder();
+        long tNow = System.currentTimeMillis();
+        StringBuilder tListing = new StringBuilder("AT+CMGL=" + (iPDUMode ? "4" : "\"ALL\"") + "\r");
+        for (int i = 1; i <= iMessages; i++) {
+            long tTimestamp = tNow - (iMessages - i) * 60 * 1000L;
+            String tText = i % 2 == 0 ? "On" : "Du har nu fatt 25 kr i bonus. Mvh Telia";
+            if (iPDUMode) {
+                String tPDU = tEncoder.encodeDeliver(AuthorizedUsers.STEFAN1, tText, tTimestamp);
+                tListing.append("\r\n+CMGL: ").append(i).append(",1,,").append(tEncoder.getTPDULength()).append("\r\n").append(tPDU);
+            } else {
+                tListing.append("\r\n+CMGL: ").append(i).append(",\"REC READ\",\"").append(AuthorizedUsers.STEFAN1)
+                        .append("\",\"\",\"").append(tFormat.format(new Date(tTimestamp))).append("+08\"\r\n").append(tText);
+            }
+        }
+        tListing.append("\r\n\r\nOK\r\n");
+        iListing = tListing.toString().getBytes(StandardCharsets.ISO_8859_1);
+        iParser.setPDUMode(iPDUMode);
+    }
+
+    @Benchmark
+    public int parseListing() {
+        iCount = 0;
+        iParser.reset(iCounter);
+        for (byte b : iListing) {
+            iParser.received(b);
+        }
+        iParser.finish();
+        return iCount;
+    }
+
+}
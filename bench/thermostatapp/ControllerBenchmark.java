@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Controller.executeCommand against no-op pins: a mode change every call, and
+ * a command for the mode already active.
+ *
+ * @author Ste
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ControllerBenchmark {
+
+    private Controller iController;
+    private SMS iOn;
+    private SMS iOff;
+    private boolean iToggle;
+
+    @Setup
+    public void setUp() throws IOException {
+        iController = new Controller(new Led(new NoOpGPIOPin()), new Led(new NoOpGPIOPin()),
+                new Led(new NoOpGPIOPin()), new Led(new NoOpGPIOPin()), new Relay(new NoOpGPIOPin()));
+        iOn = command("on");
+        iOff = command("off");
+    }
+
+    private static SMS command(String aText) {
+        SMS tSMS = new SMS();
+        tSMS.setSender(AuthorizedUsers.STEFAN1);
+        tSMS.setDate(new Date());
+        tSMS.setText(aText);
+        return tSMS;
+    }
+
+    @Benchmark
+    public Command switchMode() {
+        iToggle = !iToggle;
+        return iController.executeCommand(iToggle ? iOn : iOff);
+    }
+
+    @Benchmark
+    public Command sameMode() {
+        return iController.executeCommand(iOff);
+    }
+
+}
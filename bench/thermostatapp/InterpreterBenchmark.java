@@ -0,0 +1,46 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Interpretation of a known command, the common case, of commands with
+ * arguments and of a bad one.
+ *
+ * @author Ste
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InterpreterBenchmark {
+
+    @Param({"On", " manual ", "status", "auto 21.5", "program mon-fri 06:30 auto 21", "not a command"})
+    public String iText;
+
+    private SMS iSMS;
+
+    @Setup
+    public void setUp() {
+        iSMS = new SMS();
+        iSMS.setSender(AuthorizedUsers.STEFAN1);
+        iSMS.setText(iText);
+    }
+
+    @Benchmark
+    public Command interprete() {
+        return Interpreter.getInstance().interprete(iSMS);
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import jdk.dio.DeviceDescriptor;
+import jdk.dio.gpio.GPIOPin;
+import jdk.dio.gpio.PinListener;
+
+/**
+ * Output pin that only remembers its value, to run the Controller off the Pi.
+ *
+ * @author Ste
+ */
+public class NoOpGPIOPin implements GPIOPin {
+
+    private boolean iValue;
+    private int iDirection = GPIOPin.OUTPUT;
+    private int iTrigger;
+    private boolean iOpen = true;
+
+    @Override
+    public int getDirection() throws IOException {
+        return iDirection;
+    }
+
+    @Override
+    public int getTrigger() throws IOException {
+        return iTrigger;
+    }
+
+    @Override
+    public boolean getValue() throws IOException {
+        return iValue;
+    }
+
+    @Override
+    public void setDirection(int aDirection) throws IOException {
+        iDirection = aDirection;
+    }
+
+    @Override
+    public void setTrigger(int aTrigger) throws IOException {
+        iTrigger = aTrigger;
+    }
+
+    @Override
+    public void setInputListener(PinListener aListener) throws IOException {
+    }
+
+    @Override
+    public void setValue(boolean aValue) throws IOException {
+        iValue = aValue;
+    }
+
+    @Override
+    public void tryLock(int aTimeout) throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        iOpen = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return iOpen;
+    }
+
+    @Override
+    public void unlock() throws IOException {
+    }
+
+    @Override
+    public <U extends GPIOPin> DeviceDescriptor<U> getDescriptor() {
+        return null;
+    }
+
+    @Override
+    public ByteOrder getByteOrder() throws IOException {
+        return ByteOrder.nativeOrder();
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Header parsing and date validation of a single SMS.
+ *
+ * @author Ste
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SMSBenchmark {
+
+    private static final String HEADER = "+CMGL: 4,\"REC READ\",\"+46700447531\",\"\",\"15/05/02,18:01:34+08\"";
+
+    private SMS iValidSMS;
+
+    @Setup
+    public void setUp() {
+        iValidSMS = new SMS();
+        iValidSMS.setPosition(4);
+        iValidSMS.setSender(AuthorizedUsers.STEFAN1);
+        iValidSMS.setText("On");
+        iValidSMS.setDate(new Date());
+    }
+
+    @Benchmark
+    public SMS parseHeaderAndSetData() {
+        SMS tSMS = new SMS();
+        tSMS.parseHeaderAndSetData(HEADER);
+        return tSMS;
+    }
+
+    @Benchmark
+    public boolean isDateValid() {
+        return iValidSMS.isDateValid();
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * One AT command as queued on the ATCommandExecutor. When a payload is given
+ * (AT+CMGS) the executor waits for the "> " prompt, writes the payload
+ * terminated by ctrl-Z and then waits for the final result code. With a
+ * stream handler the reply is passed to it as it arrives and is not kept in
+ * the ATResponse. A routine command (watchdog probe, network sample) is
+ * only logged with -Dmodem.trace=true.
+ *
+ * @author Ste
+ */
+public class ATCommand {
+
+    //lower value runs first
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 5;
+    public static final int PRIORITY_LOW = 10;
+
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    private final String iCommand;
+    private final String iPayload;
+    private final long iTimeout;
+    private final int iPriority;
+    private final ATStreamHandler iStreamHandler;
+    private final boolean iRoutine;
+
+    public ATCommand(String aCommand) {
+        this(aCommand, DEFAULT_TIMEOUT, PRIORITY_NORMAL);
+    }
+
+    public ATCommand(String aCommand, long aTimeout, int aPriority) {
+        this(aCommand, null, aTimeout, aPriority);
+    }
+
+    /**
+     * aRoutine for a command sent periodically, not worth a log line each
+     * time.
+     */
+    public ATCommand(String aCommand, long aTimeout, int aPriority, boolean aRoutine) {
+        this(aCommand, null, aTimeout, aPriority, null, aRoutine);
+    }
+
+    public ATCommand(String aCommand, long aTimeout, int aPriority, ATStreamHandler aStreamHandler) {
+        this(aCommand, null, aTimeout, aPriority, aStreamHandler);
+    }
+
+    public ATCommand(String aCommand, String aPayload, long aTimeout, int aPriority) {
+        this(aCommand, aPayload, aTimeout, aPriority, null);
+    }
+
+    public ATCommand(String aCommand, String aPayload, long aTimeout, int aPriority, ATStreamHandler aStreamHandler) {
+        this(aCommand, aPayload, aTimeout, aPriority, aStreamHandler, false);
+    }
+
+    private ATCommand(String aCommand, String aPayload, long aTimeout, int aPriority, ATStreamHandler aStreamHandler, boolean aRoutine) {
+        iCommand = aCommand;
+        iPayload = aPayload;
+        iTimeout = aTimeout;
+        iPriority = aPriority;
+        iStreamHandler = aStreamHandler;
+        iRoutine = aRoutine;
+    }
+
+    public String getCommand() {
+        return iCommand;
+    }
+
+    public String getPayload() {
+        return iPayload;
+    }
+
+    public boolean hasPayload() {
+        return iPayload != null;
+    }
+
+    public long getTimeout() {
+        return iTimeout;
+    }
+
+    public int getPriority() {
+        return iPriority;
+    }
+
+    public ATStreamHandler getStreamHandler() {
+        return iStreamHandler;
+    }
+
+    public boolean isRoutine() {
+        return iRoutine;
+    }
+
+    public String toString() {
+        return iCommand;
+    }
+
+}
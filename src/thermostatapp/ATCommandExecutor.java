@@ -0,0 +1,363 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single owner of the modem serial port. Commands can be submitted from any
+ * thread; they are written one at a time by the executor thread in priority
+ * order (FIFO within the same priority), and the next one is sent as soon as
+ * the previous final result code has been framed. While idle it sleeps on the
+ * queue; the read listener of the transport wakes it up to hand unsolicited
+ * result codes to the listener.
+ *
+ * @author Ste
+ */
+public class ATCommandExecutor {
+
+    static final private char ctrlZ = (char) 26;
+    static final private int POLL_INTERVAL = 20;
+    //-Dmodem.trace=true logs the routine commands too
+    static final private boolean TRACE = Boolean.getBoolean("modem.trace");
+    static final private Charset ASCII = Charset.forName("ISO-8859-1");
+    //queued by the read listener, ahead of any command
+    static final private Pending DATA_AVAILABLE = new Pending(new ATCommand("", 0, -1), -1, null);
+
+    private final SerialTransport iTransport;
+    private final PriorityBlockingQueue<Pending> iQueue = new PriorityBlockingQueue<Pending>();
+    private final AtomicLong iSequence = new AtomicLong();
+    private final AtomicBoolean iWakeUpQueued = new AtomicBoolean();
+    //held by the worker while it uses the port, and by whoever paused it
+    private final ReentrantLock iPortLock = new ReentrantLock();
+    //set by pause(): the command being executed is given up
+    private volatile boolean iPausing = false;
+    private volatile long iLastAnswer = System.currentTimeMillis();
+    //kept in read mode: what is left after a final result code is not lost
+    private final ByteBuffer iReadBuffer = ByteBuffer.allocate(512);
+    private final StringBuffer iIdleLine = new StringBuffer();
+    private volatile UnsolicitedResponseListener iListener;
+    private Thread iWorker;
+    private volatile boolean iRunning = false;
+
+    public ATCommandExecutor(SerialTransport aTransport) {
+        iTransport = aTransport;
+        iReadBuffer.limit(0);
+    }
+
+    public synchronized void start() {
+        if (iRunning) {
+            return;
+        }
+        iRunning = true;
+        iTransport.setReadListener(new SerialReadListener() {
+            @Override
+            public void dataAvailable(SerialTransport aTransport) {
+                if (iWakeUpQueued.compareAndSet(false, true)) {
+                    iQueue.put(DATA_AVAILABLE);
+                }
+            }
+        });
+        iWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (iRunning) {
+                    Pending tPending;
+                    try {
+                        tPending = iQueue.take();
+                    } catch (InterruptedException ex) {
+                        continue;
+                    }
+                    if (tPending == DATA_AVAILABLE) {
+                        iWakeUpQueued.set(false);
+                    }
+                    iPortLock.lock();
+                    try {
+                        try {
+                            readUnsolicited();
+                        } catch (IOException ex) {
+                            System.out.println("ATCommandExecutor: read failed: " + ex.getMessage());
+                        }
+                        if (tPending == DATA_AVAILABLE) {
+                            continue;
+                        }
+                        try {
+                            tPending.iFuture.complete(execute(tPending.iCommand));
+                        } catch (IOException | RuntimeException ex) {
+                            tPending.iFuture.completeExceptionally(ex);
+                        }
+                    } finally {
+                        iPortLock.unlock();
+                    }
+                }
+            }
+        }, "ATCommandExecutor");
+        iWorker.setDaemon(true);
+        iWorker.start();
+    }
+
+    public CompletableFuture<ATResponse> submit(ATCommand aCommand) {
+        CompletableFuture<ATResponse> tFuture = new CompletableFuture<ATResponse>();
+        if (!iRunning) {
+            tFuture.completeExceptionally(new IllegalStateException("ATCommandExecutor not running"));
+            return tFuture;
+        }
+        iQueue.put(new Pending(aCommand, iSequence.getAndIncrement(), tFuture));
+        return tFuture;
+    }
+
+    public void setUnsolicitedResponseListener(UnsolicitedResponseListener aListener) {
+        iListener = aListener;
+    }
+
+    public int getQueueSize() {
+        return iQueue.size();
+    }
+
+    /**
+     * When the modem last framed a final result code.
+     */
+    public long getLastAnswer() {
+        return iLastAnswer;
+    }
+
+    /**
+     * Gives up the command being executed, which gets a timed out response
+     * at the next POLL_INTERVAL, then keeps the worker off the port until
+     * resume(), e.g. to reopen it. Commands keep being queued.
+     */
+    public void pause() {
+        iPausing = true;
+        try {
+            iPortLock.lock();
+        } finally {
+            iPausing = false;
+        }
+    }
+
+    /**
+     * Lets the worker go on with the queue. Whatever was read before the
+     * pause is dropped.
+     */
+    public void resume() {
+        iReadBuffer.limit(0);
+        iIdleLine.setLength(0);
+        iLastAnswer = System.currentTimeMillis();
+        iPortLock.unlock();
+    }
+
+    public synchronized void stop() {
+        iRunning = false;
+        iTransport.setReadListener(null);
+        if (iWorker != null) {
+            iWorker.interrupt();
+            try {
+                iWorker.join(1000);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            iWorker = null;
+        }
+        Pending tPending;
+        while ((tPending = iQueue.poll()) != null) {
+            if (tPending == DATA_AVAILABLE) {
+                continue;
+            }
+            tPending.iFuture.completeExceptionally(new IllegalStateException("ATCommandExecutor stopped"));
+        }
+    }
+
+    private ATResponse execute(ATCommand aCommand) throws IOException {
+        long tStart = System.currentTimeMillis();
+        long tDeadline = tStart + aCommand.getTimeout();
+        StringBuffer tReply = new StringBuffer();
+        if (TRACE || !aCommand.isRoutine()) {
+            System.out.println("---->Sending: " + aCommand);
+        }
+        write(aCommand.getCommand() + "\r");
+        if (aCommand.hasPayload()) {
+            String tResult = readUntilFinal(tReply, tDeadline, true, null);
+            if (tResult != null) {
+                //the modem refused the command, the payload is never sent
+                return new ATResponse(aCommand, tReply.toString(), tResult, System.currentTimeMillis() - tStart);
+            }
+            if (!tReply.toString().endsWith("> ")) {
+                //no prompt: cancel the pending input with ESC
+                write(String.valueOf((char) 27));
+                return new ATResponse(aCommand, tReply.toString(), null, System.currentTimeMillis() - tStart);
+            }
+            write(aCommand.getPayload() + ctrlZ);
+        }
+        String tResult = readUntilFinal(tReply, tDeadline, false, aCommand.getStreamHandler());
+        ATResponse tResponse = new ATResponse(aCommand, tReply.toString(), tResult, System.currentTimeMillis() - tStart);
+        if (tResponse.isTimedOut() && iPausing) {
+            System.out.println("<---->GIVEN UP for a reconnect: " + aCommand);
+        } else if (tResponse.isTimedOut()) {
+            System.out.println("<---->TIMEOUT after " + aCommand.getTimeout() + "ms waiting for the GSM module: " + aCommand);
+        }
+        return tResponse;
+    }
+
+    /**
+     * Appends to aReply until a final result code is framed, returning it, or
+     * until the "> " prompt shows up (if aPromptExpected) or the deadline
+     * passes, returning null. With aStreamHandler every line but the URCs is
+     * passed on once complete, and only the current line is kept in aReply.
+     *
+     * After a +CMGL/+CMGR header the lines are message text, even if they
+     * read "OK", until the next header or a final result code after a blank
+     * line: the modem frames the result code as <CR><LF>OK<CR><LF> (3GPP
+     * 27.005), while line breaks in a text message are a bare <LF>.
+     */
+    private String readUntilFinal(StringBuffer aReply, long aDeadline, boolean aPromptExpected, ATStreamHandler aStreamHandler) throws IOException {
+        int tLineStart = aReply.length();
+        boolean tInBody = false;
+        boolean tAfterBlank = false;
+        while (iRunning && !iPausing && System.currentTimeMillis() < aDeadline) {
+            int b = nextByte(aDeadline);
+            if (b < 0) {
+                continue;
+            }
+            char c = (char) b;
+            aReply.append(c);
+            if (c == '\n') {
+                int tRawLineStart = tLineStart;
+                String tLine = aReply.substring(tRawLineStart).trim();
+                boolean tBlankBefore = tAfterBlank;
+                tAfterBlank = false;
+                tLineStart = aReply.length();
+                if (tLine.length() == 0) {
+                    tAfterBlank = aReply.length() - tRawLineStart == 2 && aReply.charAt(tRawLineStart) == '\r';
+                } else if (isUnsolicited(tLine)) {
+                    //interleaved with the reply, not part of it
+                    aReply.setLength(tRawLineStart);
+                    tLineStart = tRawLineStart;
+                    tAfterBlank = tBlankBefore;
+                    notifyUnsolicited(tLine);
+                    continue;
+                } else if (ATResponse.isFinalResultCode(tLine) && (!tInBody || tBlankBefore)) {
+                    iLastAnswer = System.currentTimeMillis();
+                    forward(aReply, tRawLineStart, aStreamHandler);
+                    return tLine;
+                } else if (tLine.startsWith("+CMGL:") || tLine.startsWith("+CMGR:")) {
+                    tInBody = true;
+                }
+                if (aStreamHandler != null) {
+                    forward(aReply, tRawLineStart, aStreamHandler);
+                    aReply.setLength(0);
+                    tLineStart = 0;
+                }
+            } else if (aPromptExpected && c == ' ' && aReply.length() - tLineStart == 2
+                    && aReply.charAt(tLineStart) == '>') {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Passes the line of aReply from aStart on to aStreamHandler, if any.
+     */
+    private static void forward(StringBuffer aReply, int aStart, ATStreamHandler aStreamHandler) {
+        if (aStreamHandler == null) {
+            return;
+        }
+        for (int i = aStart; i < aReply.length(); i++) {
+            aStreamHandler.received((byte) aReply.charAt(i));
+        }
+    }
+
+    /**
+     * Drains what the modem sent between commands, one URC per line.
+     */
+    private void readUnsolicited() throws IOException {
+        int b;
+        while ((b = nextByte(0)) >= 0) {
+            char c = (char) b;
+            if (c == '\n') {
+                String tLine = iIdleLine.toString().trim();
+                iIdleLine.setLength(0);
+                if (tLine.length() > 0) {
+                    notifyUnsolicited(tLine);
+                }
+            } else {
+                iIdleLine.append(c);
+            }
+        }
+    }
+
+    /**
+     * Next byte from the port, refilling the read buffer waiting at most
+     * POLL_INTERVAL and not past aDeadline. -1 if nothing came.
+     */
+    private int nextByte(long aDeadline) throws IOException {
+        if (!iReadBuffer.hasRemaining()) {
+            iReadBuffer.clear();
+            long tWait = aDeadline - System.currentTimeMillis();
+            if (tWait > 0) {
+                iTransport.read(iReadBuffer, Math.min(tWait, POLL_INTERVAL));
+            } else {
+                iTransport.read(iReadBuffer);
+            }
+            iReadBuffer.flip();
+            if (!iReadBuffer.hasRemaining()) {
+                return -1;
+            }
+        }
+        return iReadBuffer.get() & 0xFF;
+    }
+
+    private void write(String aText) throws IOException {
+        iTransport.write(ByteBuffer.wrap(aText.getBytes(ASCII)));
+    }
+
+    private void notifyUnsolicited(String aLine) {
+        System.out.println("<----URC: " + aLine);
+        UnsolicitedResponseListener tListener = iListener;
+        if (tListener != null) {
+            try {
+                tListener.unsolicitedResponse(aLine);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    static boolean isUnsolicited(String aLine) {
+        return aLine.startsWith("+CMTI:")
+                || aLine.startsWith("+CDSI:")
+                || aLine.equals("RING");
+    }
+
+    private static class Pending implements Comparable<Pending> {
+
+        final ATCommand iCommand;
+        final long iSequence;
+        final CompletableFuture<ATResponse> iFuture;
+
+        Pending(ATCommand aCommand, long aSequence, CompletableFuture<ATResponse> aFuture) {
+            iCommand = aCommand;
+            iSequence = aSequence;
+            iFuture = aFuture;
+        }
+
+        @Override
+        public int compareTo(Pending o) {
+            if (iCommand.getPriority() != o.iCommand.getPriority()) {
+                return iCommand.getPriority() < o.iCommand.getPriority() ? -1 : 1;
+            }
+            return iSequence < o.iSequence ? -1 : (iSequence == o.iSequence ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Raw reply of an ATCommand together with the final result code that closed
+ * it. The result code is null if the command timed out.
+ *
+ * @author Ste
+ */
+public class ATResponse {
+
+    private final ATCommand iCommand;
+    private final String iRaw;
+    private final String iResultCode;
+    private final long iElapsed;
+
+    public ATResponse(ATCommand aCommand, String aRaw, String aResultCode, long aElapsed) {
+        iCommand = aCommand;
+        iRaw = aRaw == null ? "" : aRaw;
+        iResultCode = aResultCode;
+        iElapsed = aElapsed;
+    }
+
+    public ATCommand getCommand() {
+        return iCommand;
+    }
+
+    public String getRaw() {
+        return iRaw;
+    }
+
+    public String getResultCode() {
+        return iResultCode;
+    }
+
+    public long getElapsed() {
+        return iElapsed;
+    }
+
+    public boolean isOK() {
+        return "OK".equals(iResultCode);
+    }
+
+    public boolean isError() {
+        return iResultCode != null && !isOK();
+    }
+
+    public boolean isTimedOut() {
+        return iResultCode == null;
+    }
+
+    static boolean isFinalResultCode(String aLine) {
+        return aLine.equals("OK")
+                || aLine.equals("ERROR")
+                || aLine.startsWith("+CMS ERROR:")
+                || aLine.startsWith("+CME ERROR:");
+    }
+
+    public String toString() {
+        return "[AT]: " + iCommand + " [Result]: " + (isTimedOut() ? "TIMEOUT" : iResultCode) + " [ms]: " + iElapsed;
+    }
+
+}
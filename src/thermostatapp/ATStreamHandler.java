@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Consumes the reply of an ATCommand byte by byte, as it is read from the
+ * port, instead of getting it in one piece in the ATResponse. Called on the
+ * executor thread.
+ *
+ * @author Ste
+ */
+public interface ATStreamHandler {
+
+    void received(byte aByte);
+
+}
@@ -5,8 +5,19 @@
  */
 package thermostatapp;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *
@@ -18,12 +29,80 @@ public class AuthorizedUsers {
     public static final String STEFAN2 = "+393496191740";
     public static final String BABBO = "+393471768654";
 
-    public static List<String> getAllUsers() {
+    private static final List<String> USERS;
+    //numbers added by the register command, saved in iRegisteredFile
+    private static final CopyOnWriteArrayList<String> REGISTERED = new CopyOnWriteArrayList<String>();
+    private static volatile File iRegisteredFile;
+
+    static {
         List<String> tUsers = new ArrayList<String>();
         tUsers.add(STEFAN1);
         tUsers.add(STEFAN1);
         tUsers.add(STEFAN1);
+        USERS = Collections.unmodifiableList(tUsers);
+    }
+
+    public static List<String> getAllUsers() {
+        if (REGISTERED.isEmpty()) {
+            return USERS;
+        }
+        List<String> tUsers = new ArrayList<String>(USERS);
+        tUsers.addAll(REGISTERED);
         return tUsers;
     }
 
+    public static boolean isAuthorized(String aNumber) {
+        return USERS.contains(aNumber) || REGISTERED.contains(aNumber);
+    }
+
+    /**
+     * Loads the numbers registered before and saves the new ones in aFile.
+     */
+    public static void load(File aFile) {
+        iRegisteredFile = aFile;
+        if (!aFile.exists()) {
+            return;
+        }
+        try (BufferedReader tReader = new BufferedReader(new InputStreamReader(new FileInputStream(aFile), StandardCharsets.UTF_8))) {
+            String tLine;
+            while ((tLine = tReader.readLine()) != null) {
+                if (!tLine.trim().isEmpty()) {
+                    REGISTERED.addIfAbsent(tLine.trim());
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("AuthorizedUsers: cannot read " + aFile + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Authorizes aNumber, false if it already was.
+     */
+    public static synchronized boolean register(String aNumber) {
+        if (USERS.contains(aNumber) || !REGISTERED.addIfAbsent(aNumber)) {
+            return false;
+        }
+        File tFile = iRegisteredFile;
+        if (tFile == null) {
+            return true;
+        }
+        File tTemp = new File(tFile.getPath() + ".tmp");
+        try (BufferedWriter tWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tTemp), StandardCharsets.UTF_8))) {
+            for (String tNumber : REGISTERED) {
+                tWriter.write(tNumber);
+                tWriter.newLine();
+            }
+        } catch (IOException ex) {
+            System.out.println("AuthorizedUsers: cannot write " + tTemp + ": " + ex.getMessage());
+            return true;
+        }
+        if (!tTemp.renameTo(tFile)) {
+            tFile.delete();
+            if (!tTemp.renameTo(tFile)) {
+                System.out.println("AuthorizedUsers: cannot replace " + tFile);
+            }
+        }
+        return true;
+    }
+
 }
@@ -0,0 +1,286 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
+/**
+ * Finds the rate the modem is talking at by probing AT, starting from the one
+ * saved last time, then raises it with AT+IPR to the fastest rate that passes
+ * an integrity check: the identification the modem gives with echo on (ATI,
+ * AT+CGMR, AT+GSN), read at the rate it was found at, must come back byte
+ * for byte CHECKS times. A rate that fails is left for the next lower one;
+ * if all fail the modem stays at the rate it was found at. The chosen rate
+ * is saved in a properties file. Runs before the ATCommandExecutor owns the
+ * port.
+ *
+ * @author Ste
+ */
+public class BaudRateNegotiator {
+
+    public static final int FALLBACK_RATE = 9600;
+
+    //fastest first
+    static final int[] RATES = {115200, 57600, 38400, 19200, 9600};
+
+    private static final String RATE_PROPERTY = "baudrate";
+    private static final int CHECKS = 3;
+    private static final String[] IDENTIFICATION = {"ATI", "AT+CGMR", "AT+GSN"};
+    private static final long PROBE_TIMEOUT = 500;
+    private static final int SETTLE_TIME = 200;
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
+    private final SerialTransport iTransport;
+    private final File iFile;
+    private final ByteBuffer iBuffer = ByteBuffer.allocate(256);
+    private boolean iAnswered = false;
+
+    public BaudRateNegotiator(SerialTransport aTransport, File aFile) {
+        iTransport = aTransport;
+        iFile = aFile;
+    }
+
+    /**
+     * Returns the rate the port is left open at.
+     */
+    public int negotiate() {
+        int tCurrent = detect();
+        if (tCurrent < 0) {
+            System.out.println("BaudRateNegotiator: no answer from the modem, using " + FALLBACK_RATE);
+            open(FALLBACK_RATE);
+            return FALLBACK_RATE;
+        }
+        iAnswered = true;
+        System.out.println("BaudRateNegotiator: modem answers at " + tCurrent);
+        String tReference = identification();
+        if (!tReference.endsWith("OK\r\n")) {
+            System.out.println("BaudRateNegotiator: no identification at " + tCurrent + ", staying there");
+            save(tCurrent);
+            return tCurrent;
+        }
+        for (int tRate : RATES) {
+            if (tRate <= tCurrent) {
+                break;
+            }
+            if (!switchRate(tRate)) {
+                continue;
+            }
+            if (integrityCheck(tReference)) {
+                //keep it across modem restarts
+                exchange("AT&W");
+                save(tRate);
+                System.out.println("BaudRateNegotiator: running at " + tRate);
+                return tRate;
+            }
+            System.out.println("BaudRateNegotiator: integrity check failed at " + tRate);
+            if (!switchBack(tRate, tCurrent)) {
+                return fallBack();
+            }
+        }
+        save(tCurrent);
+        return tCurrent;
+    }
+
+    /**
+     * Opens the port at aRate and probes the modem there, leaving the port
+     * open at aRate either way.
+     */
+    public boolean answersAt(int aRate) {
+        return probe(aRate);
+    }
+
+    /**
+     * Whether the modem answered at any rate in negotiate().
+     */
+    public boolean hasAnswered() {
+        return iAnswered;
+    }
+
+    /**
+     * Tries the saved rate first, then all the others.
+     */
+    private int detect() {
+        int tSaved = load();
+        if (tSaved > 0 && probe(tSaved)) {
+            return tSaved;
+        }
+        for (int tRate : RATES) {
+            if (tRate != tSaved && probe(tRate)) {
+                return tRate;
+            }
+        }
+        return -1;
+    }
+
+    private boolean probe(int aRate) {
+        open(aRate);
+        if (exchange("AT").contains("OK")) {
+            return true;
+        }
+        //a second try: the first AT may only have woken up the autobauding
+        return exchange("AT").contains("OK");
+    }
+
+    /**
+     * AT+IPR is answered at the old rate, the next command goes at the new one.
+     */
+    private boolean switchRate(int aTo) {
+        if (!exchange("AT+IPR=" + aTo).contains("OK")) {
+            System.out.println("BaudRateNegotiator: " + aTo + " not supported");
+            return false;
+        }
+        open(aTo);
+        return true;
+    }
+
+    /**
+     * Echo on, then the replies of ATI, AT+CGMR and AT+GSN, echo included: a
+     * hundred bytes or so of letters, digits and punctuation.
+     */
+    private String identification() {
+        exchange("ATE1");
+        StringBuilder tReply = new StringBuilder();
+        for (String tCommand : IDENTIFICATION) {
+            String tPart = exchange(tCommand);
+            if (!tPart.endsWith("OK\r\n")) {
+                return "";
+            }
+            tReply.append(tPart);
+        }
+        return tReply.toString();
+    }
+
+    private boolean integrityCheck(String aReference) {
+        for (int i = 0; i < CHECKS; i++) {
+            String tReply = identification();
+            if (!tReply.equals(aReference)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the modem back from aFailed to aCurrent, which it answered at.
+     * False if it then answers at no rate below aFailed.
+     */
+    private boolean switchBack(int aFailed, int aCurrent) {
+        //may not get through on a bad line, the modem is probed anyway
+        exchange("AT+IPR=" + aCurrent);
+        if (probe(aCurrent)) {
+            return true;
+        }
+        int tRate = detect();
+        if (tRate < 0 || tRate >= aFailed) {
+            return false;
+        }
+        System.out.println("BaudRateNegotiator: modem back at " + tRate);
+        return tRate == aCurrent || (exchange("AT+IPR=" + aCurrent).contains("OK") && probe(aCurrent));
+    }
+
+    /**
+     * The modem is lost or stuck at a rate that failed: 9600 from wherever
+     * it answers.
+     */
+    private int fallBack() {
+        System.out.println("BaudRateNegotiator: falling back to " + FALLBACK_RATE);
+        int tCurrent = detect();
+        if (tCurrent > 0 && tCurrent != FALLBACK_RATE) {
+            exchange("AT+IPR=" + FALLBACK_RATE);
+            open(FALLBACK_RATE);
+            exchange("AT&W");
+        } else if (tCurrent < 0) {
+            open(FALLBACK_RATE);
+        }
+        save(FALLBACK_RATE);
+        return FALLBACK_RATE;
+    }
+
+    private void open(int aRate) {
+        iTransport.close();
+        whaitABit(SETTLE_TIME);
+        try {
+            iTransport.open(aRate);
+        } catch (IOException ex) {
+            System.out.println("BaudRateNegotiator: cannot open the port at " + aRate + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes aCommand and reads until OK/ERROR or PROBE_TIMEOUT.
+     */
+    private String exchange(String aCommand) {
+        if (!iTransport.isOpen()) {
+            return "";
+        }
+        StringBuffer tReply = new StringBuffer();
+        try {
+            do {
+                iBuffer.clear();
+            } while (iTransport.read(iBuffer) > 0);
+            iTransport.write(ByteBuffer.wrap((aCommand + "\r").getBytes(ASCII)));
+            long tDeadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            long tWait;
+            while ((tWait = tDeadline - System.currentTimeMillis()) > 0) {
+                iBuffer.clear();
+                iTransport.read(iBuffer, tWait);
+                iBuffer.flip();
+                while (iBuffer.hasRemaining()) {
+                    tReply.append((char) (iBuffer.get() & 0xFF));
+                }
+                String tReplyText = tReply.toString();
+                if (tReplyText.endsWith("OK\r\n") || tReplyText.endsWith("ERROR\r\n")) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("BaudRateNegotiator: " + aCommand + " failed: " + ex.getMessage());
+        }
+        return tReply.toString();
+    }
+
+    private int load() {
+        if (!iFile.exists()) {
+            return -1;
+        }
+        Properties tProperties = new Properties();
+        try (InputStream tIn = new FileInputStream(iFile)) {
+            tProperties.load(tIn);
+            return Integer.parseInt(tProperties.getProperty(RATE_PROPERTY, "-1").trim());
+        } catch (IOException | NumberFormatException ex) {
+            System.out.println("BaudRateNegotiator: cannot read " + iFile + ": " + ex.getMessage());
+            return -1;
+        }
+    }
+
+    private void save(int aRate) {
+        Properties tProperties = new Properties();
+        tProperties.setProperty(RATE_PROPERTY, Integer.toString(aRate));
+        try (OutputStream tOut = new FileOutputStream(iFile)) {
+            tProperties.store(tOut, "GSM modem serial rate");
+        } catch (IOException ex) {
+            System.out.println("BaudRateNegotiator: cannot write " + iFile + ": " + ex.getMessage());
+        }
+    }
+
+    private void whaitABit(int a) {
+        try {
+            Thread.sleep(a);
+        } catch (InterruptedException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+}
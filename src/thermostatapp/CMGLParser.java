@@ -0,0 +1,229 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser of an AT+CMGL text mode listing. Only the current line
+ * is kept, in a ByteBuffer reused across listings, and every SMS is handed to
+ * the listener as soon as its body is complete: at the next +CMGL header or
+ * at the final result code. In PDU mode the line after the header is decoded
+ * straight from the buffer by the PDUDecoder.
+ *
+ * The ATCommandExecutor takes the URCs out before the lines get here. In a
+ * text body a final result code ends the listing only after a <CR><LF>
+ * blank line, as the modem frames it; anything else is message text.
+ *
+ * @author Ste
+ */
+public class CMGLParser implements ATStreamHandler {
+
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE = 1024;
+    private static final byte[] HEADER = "+CMGL:".getBytes(CHARSET);
+
+    private final ByteBuffer iLine = ByteBuffer.allocate(MAX_LINE);
+    private final StringBuilder iText = new StringBuilder();
+    private final PDUDecoder iDecoder = new PDUDecoder();
+    private final LineSequence iLineSequence = new LineSequence();
+    private boolean iPDUMode = false;
+    private SMSListener iListener;
+    private SMS iCurrent;
+    private boolean iBodyStarted;
+    private boolean iFinished;
+    //the current line has a <CR>
+    private boolean iCarriageReturn;
+    //the previous line was a <CR><LF> blank line
+    private boolean iAfterBlank;
+
+    /**
+     * +CMGL: <index>,<stat>,[<alpha>],<length> followed by the PDU in hex
+     * instead of the text mode header and text.
+     */
+    public void setPDUMode(boolean aPDUMode) {
+        iPDUMode = aPDUMode;
+    }
+
+    /**
+     * Prepares the parser for a new listing.
+     */
+    public void reset(SMSListener aListener) {
+        iListener = aListener;
+        iLine.clear();
+        iText.setLength(0);
+        iCurrent = null;
+        iBodyStarted = false;
+        iFinished = false;
+        iCarriageReturn = false;
+        iAfterBlank = false;
+    }
+
+    @Override
+    public void received(byte aByte) {
+        if (aByte == '\n') {
+            endOfLine();
+        } else if (aByte == '\r') {
+            iCarriageReturn = true;
+        } else if (iLine.hasRemaining()) {
+            //longer lines are truncated, a text SMS is at most 160 chars
+            iLine.put(aByte);
+        }
+    }
+
+    /**
+     * Emits the last message if the listing ended without a result code,
+     * e.g. on timeout.
+     */
+    public void finish() {
+        if (iLine.position() > 0) {
+            endOfLine();
+        }
+        emit();
+        iFinished = true;
+    }
+
+    public boolean isFinished() {
+        return iFinished;
+    }
+
+    private void endOfLine() {
+        int tLength = iLine.position();
+        boolean tBlankBefore = iAfterBlank;
+        iAfterBlank = false;
+        boolean tCarriageReturn = iCarriageReturn;
+        iCarriageReturn = false;
+        if (iFinished) {
+            iLine.clear();
+            return;
+        }
+        if (tLength == 0) {
+            if (tCarriageReturn) {
+                iAfterBlank = true;
+            } else if (iBodyStarted) {
+                //an empty line of the message text
+                iText.append('\n');
+            }
+            iLine.clear();
+            return;
+        }
+        if (startsWith(HEADER, tLength)) {
+            emit();
+            iCurrent = new SMS();
+            if (iPDUMode) {
+                iCurrent.setPosition(parseIndex(tLength));
+                iLine.clear();
+                return;
+            }
+            try {
+                iCurrent.parseHeaderAndSetData(iLineSequence.of(tLength));
+            } catch (RuntimeException ex) {
+                System.out.println("CMGLParser: cannot parse header: " + new String(iLine.array(), 0, tLength, CHARSET));
+                iCurrent = null;
+            }
+        } else if (iCurrent != null && iPDUMode) {
+            if (iDecoder.decode(iLine.array(), 0, tLength, iCurrent)) {
+                if (iListener != null) {
+                    iListener.smsReceived(iCurrent);
+                }
+            } else {
+                System.out.println("CMGLParser: cannot decode PDU at " + iCurrent.getPosition());
+            }
+            iCurrent = null;
+        } else if (iCurrent != null) {
+            String tLine = new String(iLine.array(), 0, tLength, CHARSET);
+            if (tBlankBefore && ATResponse.isFinalResultCode(tLine.trim())) {
+                emit();
+                iFinished = true;
+            } else {
+                if (tBlankBefore && iBodyStarted) {
+                    //the blank line was text
+                    iText.append('\n');
+                }
+                if (iBodyStarted) {
+                    iText.append('\n');
+                }
+                iText.append(tLine);
+                iBodyStarted = true;
+            }
+        } else if (ATResponse.isFinalResultCode(new String(iLine.array(), 0, tLength, CHARSET).trim())) {
+            //empty listing, or after the last PDU
+            iFinished = true;
+        }
+        iLine.clear();
+    }
+
+    private void emit() {
+        if (iCurrent != null) {
+            iCurrent.setText(iText.toString());
+            if (iListener != null) {
+                iListener.smsReceived(iCurrent);
+            }
+        }
+        iCurrent = null;
+        iText.setLength(0);
+        iBodyStarted = false;
+    }
+
+    private int parseIndex(int aLength) {
+        byte[] tLine = iLine.array();
+        int tIndex = 0;
+        for (int i = HEADER.length; i < aLength && tLine[i] != ','; i++) {
+            if (tLine[i] >= '0' && tLine[i] <= '9') {
+                tIndex = tIndex * 10 + (tLine[i] - '0');
+            }
+        }
+        return tIndex;
+    }
+
+    /**
+     * The current line seen as chars, without copying it.
+     */
+    private class LineSequence implements CharSequence {
+
+        private int iLength;
+
+        LineSequence of(int aLength) {
+            iLength = aLength;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return iLength;
+        }
+
+        @Override
+        public char charAt(int aIndex) {
+            return (char) (iLine.array()[aIndex] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int aStart, int aEnd) {
+            return new String(iLine.array(), aStart, aEnd - aStart, CHARSET);
+        }
+
+        @Override
+        public String toString() {
+            return new String(iLine.array(), 0, iLength, CHARSET);
+        }
+    }
+
+    private boolean startsWith(byte[] aPrefix, int aLength) {
+        if (aLength < aPrefix.length) {
+            return false;
+        }
+        byte[] tLine = iLine.array();
+        for (int i = 0; i < aPrefix.length; i++) {
+            if (tLine[i] != aPrefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -15,6 +15,7 @@ public enum Command {
     ON("on"),
     OFF("off"),
     MANUAL("manual"),
+    AUTO("auto"),
     STATUS("status"),
     HELP("help"),
     REGISTER_NUMBER("register"),
@@ -6,145 +6,381 @@
 package thermostatapp;
 
 import java.io.IOException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * The heating state machine. The state is an immutable State swapped with
+ * compareAndSet, so the SMS commands (Timer thread) and the buttons (one
+ * thread per event) never lose an update; the next state comes from the
+ * TRANSITIONS table. The pins are only written by actuate(), one thread at
+ * a time and always with the latest state, so concurrent transitions never
+ * interleave their writes. actuate() goes through an OutputRegister, so only
+ * the pins that change are written.
  *
  * @author Ste
  */
 class Controller {
 
-    private int iState;  // 1,2,3.
-    private Led iHeaterStatus;
-    private Relay iHeaterRelay;
-    private Led iLedGreen;
-    private Led iLedYellow;
-    private Led iLedRed;
+    /**
+     * What can happen to the controller: a mode command by SMS, the mode
+     * button, the manual thermostat switch or the HeatingControl demand.
+     */
+    enum Event {
+        ON,
+        MANUAL,
+        OFF,
+        AUTO,
+        SWITCH_MODE,
+        THERMOSTAT_ON,
+        THERMOSTAT_OFF,
+        DEMAND_ON,
+        DEMAND_OFF
+    }
+
+    public static final double DEFAULT_TARGET = 20.0;
+    static final double MIN_TARGET = 5.0;
+    static final double MAX_TARGET = 30.0;
+
+    /**
+     * Immutable: a transition makes a new one.
+     */
+    static final class State {
+
+        final Status iMode;
+        //heat asked by the manual thermostat in MANUAL, by HeatingControl in AUTO
+        final boolean iHeatRequested;
+        //degrees Celsius, for AUTO
+        final double iTarget;
+
+        State(Status aMode, boolean aHeatRequested, double aTarget) {
+            iMode = aMode;
+            iHeatRequested = aHeatRequested;
+            iTarget = aTarget;
+        }
+
+        boolean isHeating() {
+            return iMode == Status.ON || ((iMode == Status.MANUAL || iMode == Status.AUTO) && iHeatRequested);
+        }
+
+        @Override
+        public String toString() {
+            String tState = iMode.toString();
+            if (iMode == Status.AUTO) {
+                tState += " " + iTarget + "C";
+            }
+            if (iMode == Status.MANUAL || iMode == Status.AUTO) {
+                tState += iHeatRequested ? " (heating)" : " (idle)";
+            }
+            return tState;
+        }
+    }
+
+    //next mode by [mode][event], for the mode events
+    private static final Status[][] TRANSITIONS = new Status[Status.values().length][Event.values().length];
+
+    static {
+        for (Status tMode : Status.values()) {
+            TRANSITIONS[tMode.ordinal()][Event.ON.ordinal()] = Status.ON;
+            TRANSITIONS[tMode.ordinal()][Event.MANUAL.ordinal()] = Status.MANUAL;
+            TRANSITIONS[tMode.ordinal()][Event.OFF.ordinal()] = Status.OFF;
+            TRANSITIONS[tMode.ordinal()][Event.AUTO.ordinal()] = Status.AUTO;
+        }
+        //the mode button goes round OFF -> ON -> MANUAL -> AUTO -> OFF
+        TRANSITIONS[Status.OFF.ordinal()][Event.SWITCH_MODE.ordinal()] = Status.ON;
+        TRANSITIONS[Status.ON.ordinal()][Event.SWITCH_MODE.ordinal()] = Status.MANUAL;
+        TRANSITIONS[Status.MANUAL.ordinal()][Event.SWITCH_MODE.ordinal()] = Status.AUTO;
+        TRANSITIONS[Status.AUTO.ordinal()][Event.SWITCH_MODE.ordinal()] = Status.OFF;
+    }
+
+    private volatile TransitionListener iTransitionListener;
+    private final AtomicReference<State> iState = new AtomicReference<State>(new State(Status.OFF, false, DEFAULT_TARGET));
+    private final Object iActuatorLock = new Object();
+    //last state written to the pins, guarded by iActuatorLock
+    private State iApplied;
+    //null if the state is not kept across restarts
+    private final StateJournal iJournal;
+    //last state written to iJournal, guarded by iActuatorLock
+    private State iJournaled;
+
+    //guarded by iActuatorLock
+    private final OutputRegister iOutputs = new OutputRegister();
+    private final int iHeaterStatus;
+    private final int iHeaterRelay;
+    private final int iLedGreen;
+    private final int iLedYellow;
+    private final int iLedRed;
 
     public static boolean ON = true;
     public static boolean OFF = false;
 
     public Controller(Led aHeaterStatus, Led aGreen, Led aYellow, Led aRed, Relay aRelay) {
-        iState = 3;
-        iHeaterStatus = aHeaterStatus;
-        iHeaterRelay = aRelay;
-        iLedGreen = aGreen;
-        iLedYellow = aYellow;
-        iLedRed = aRed;
-        activateOutput();
+        this(aHeaterStatus, aGreen, aYellow, aRed, aRelay, null);
     }
 
-    public int switchMode() throws IOException {
-        //Controlled manually by pushing Mode button
-        if (iState >= 3) {
-            iState = 1;
-        } else {
-            iState++;
+    /**
+     * Starts from the mode and target aJournal recovers, OFF if there is
+     * none, and journals every mode or target change from then on. The heat
+     * request is not restored: as on any mode change it starts off, and the
+     * manual thermostat or HeatingControl raise it again with their first
+     * sample, so they are started right after.
+     */
+    public Controller(Led aHeaterStatus, Led aGreen, Led aYellow, Led aRed, Relay aRelay, StateJournal aJournal) {
+        iJournal = aJournal;
+        if (aJournal != null) {
+            try {
+                State tRecovered = aJournal.recover();
+                if (tRecovered != null) {
+                    //comes back without a heat request
+                    System.out.println("Controller: restored " + tRecovered);
+                    iState.set(tRecovered);
+                    iJournaled = tRecovered;
+                }
+            } catch (IOException ex) {
+                System.out.println("Controller: state not restored: " + ex.getMessage());
+            }
+        }
+        iHeaterStatus = iOutputs.add(aHeaterStatus.getPin(), false);
+        //the relay closes on a low level
+        iHeaterRelay = iOutputs.add(aRelay.getPin(), true);
+        iLedGreen = iOutputs.add(aGreen.getPin(), false);
+        iLedYellow = iOutputs.add(aYellow.getPin(), false);
+        iLedRed = iOutputs.add(aRed.getPin(), false);
+        try {
+            actuate();
+        } catch (IOException ex) {
+            ex.printStackTrace();
         }
-        activateOutput();
-        return iState;
     }
 
-    private int setMode(int aMode) {
-        //Used via SMS
-        if (1 > aMode || aMode > 3) {
-            System.out.println("Controller: setMode error: "+aMode);
-            return 0;
+    public Status switchMode() throws IOException {
+        //Controlled manually by pushing Mode button
+        return transition(Event.SWITCH_MODE).iMode;
+    }
+
+    /**
+     * Goes to aMode as the SMS command of the same name would, used by the
+     * WeeklyProgram.
+     */
+    public Status setMode(Status aMode) throws IOException {
+        Event tEvent;
+        switch (aMode) {
+            case ON:
+                tEvent = Event.ON;
+                break;
+            case MANUAL:
+                tEvent = Event.MANUAL;
+                break;
+            case AUTO:
+                tEvent = Event.AUTO;
+                break;
+            default:
+                tEvent = Event.OFF;
         }
-        iState = aMode;
-        activateOutput();
-        return iState;
+        return transition(tEvent).iMode;
     }
 
-    public int getState() {
-        return iState;
+    public Status getState() {
+        return iState.get().iMode;
     }
 
-    private void activateOutput() {
-        try {
-            switch (iState) {
-                case 1:
-                    //ON
-                    System.out.println("Switching to On");
-                    iHeaterStatus.turnOn();
-                    iHeaterRelay.turnOn();
-                    iLedGreen.turnOn();
-                    iLedYellow.turnOff();
-                    iLedRed.turnOff();
-                    break;
-                case 2: //MANUAL
-                    System.out.println("Switching to Thermostat");
-                    iHeaterStatus.turnOff();
-                    iHeaterRelay.turnOff();
-                    iLedGreen.turnOff();
-                    iLedYellow.turnOn();
-                    iLedRed.turnOff();
-                    break;
-                case 3: //OFF
-                    System.out.println("Switching to Off");
-                    iHeaterStatus.turnOff();
-                    iHeaterRelay.turnOff();
-                    iLedGreen.turnOff();
-                    iLedYellow.turnOff();
-                    iLedRed.turnOn();
-                    break;
-                default:
-                    System.out.println("Controller switching: This should never happen");
+    public boolean isHeating() {
+        return iState.get().isHeating();
+    }
+
+    void setTransitionListener(TransitionListener aListener) {
+        iTransitionListener = aListener;
+    }
+
+    public double getTarget() {
+        return iState.get().iTarget;
+    }
+
+    /**
+     * The temperature AUTO keeps, clamped to MIN_TARGET..MAX_TARGET.
+     */
+    public double setTarget(double aTarget) {
+        double tTarget = Math.max(MIN_TARGET, Math.min(MAX_TARGET, aTarget));
+        State tCurrent;
+        do {
+            tCurrent = iState.get();
+            if (tCurrent.iTarget == tTarget) {
+                return tTarget;
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        } while (!iState.compareAndSet(tCurrent, new State(tCurrent.iMode, tCurrent.iHeatRequested, tTarget)));
+        System.out.println("Controller: target " + tTarget + "C");
+        synchronized (iActuatorLock) {
+            journal(iState.get());
         }
+        return tTarget;
     }
 
     public void activateManualThermostat() throws IOException {
-        if (iState == 2) {
-            System.out.println("Manual Thermostate: On");
-            iHeaterStatus.turnOn();
-            iHeaterRelay.turnOn();
-        }
+        transition(Event.THERMOSTAT_ON);
     }
 
     public void deActivateManualThermostat() throws IOException {
-        if (iState == 2) {
-            System.out.println("Manual Thermostat: Off");
-            iHeaterStatus.turnOff();
-            iHeaterRelay.turnOff();
-        }
+        transition(Event.THERMOSTAT_OFF);
     }
 
-    public void executeCommand(SMS tSMS) {
-        //used via SMS
-        Interpreter it = Interpreter.getInstance();
-        Command tCmd = it.interprete(tSMS);
-        if (tCmd.equals(Command.ON)) {
-            if (iState != 1){
-                System.out.println("SMS received: On");
-                this.setMode(1);
-            }else {
-                System.out.println("SMS received: command not executed, already On");
+    /**
+     * Moves to the state aEvent leads to, retrying if another thread moved
+     * first, then brings the pins up to date. Returns the new state, the
+     * current one if aEvent changes nothing.
+     */
+    State transition(Event aEvent) throws IOException {
+        State tCurrent;
+        State tNext;
+        do {
+            tCurrent = iState.get();
+            tNext = next(tCurrent, aEvent);
+            if (tNext == tCurrent) {
+                return tCurrent;
             }
+        } while (!iState.compareAndSet(tCurrent, tNext));
+        System.out.println("Controller: " + tCurrent + " -> " + tNext + " on " + aEvent);
+        actuate();
+        TransitionListener tListener = iTransitionListener;
+        if (tListener != null) {
+            tListener.transition(System.currentTimeMillis(), tCurrent, tNext);
         }
-        else if (tCmd.equals(Command.MANUAL)) {
-            if (iState != 2){
-                System.out.println("SMS received: Manual");
-                this.setMode(2);
-            }else {
-                System.out.println("SMS received: command not executed, already on Manual");
-            }
+        return tNext;
+    }
+
+    private static State next(State aState, Event aEvent) {
+        switch (aEvent) {
+            case THERMOSTAT_ON:
+            case THERMOSTAT_OFF:
+                return request(aState, Status.MANUAL, aEvent == Event.THERMOSTAT_ON);
+            case DEMAND_ON:
+            case DEMAND_OFF:
+                return request(aState, Status.AUTO, aEvent == Event.DEMAND_ON);
+            default:
+                Status tMode = TRANSITIONS[aState.iMode.ordinal()][aEvent.ordinal()];
+                if (tMode == aState.iMode) {
+                    return aState;
+                }
+                //a new mode starts with the heater off until its input asks for heat
+                return new State(tMode, false, aState.iTarget);
         }
-        else if (tCmd.equals(Command.OFF)) {
-            if (iState != 3){
-                System.out.println("SMS received: Off");
-                this.setMode(3);
-            }else {
-                System.out.println("SMS received: command not executed, already Off");
+    }
+
+    /**
+     * A heat request from the input of aMode, ignored in the other modes.
+     */
+    private static State request(State aState, Status aMode, boolean aHeat) {
+        if (aState.iMode != aMode || aState.iHeatRequested == aHeat) {
+            return aState;
+        }
+        return new State(aMode, aHeat, aState.iTarget);
+    }
+
+    /**
+     * The single path to the pins: writes the latest state unless it is
+     * already there. A thread that lost the race to a newer transition
+     * writes nothing.
+     */
+    private void actuate() throws IOException {
+        synchronized (iActuatorLock) {
+            State tState = iState.get();
+            if (tState == iApplied) {
+                return;
             }
+            boolean tHeating = tState.isHeating();
+            iOutputs.set(iHeaterStatus, tHeating);
+            iOutputs.set(iHeaterRelay, tHeating);
+            //AUTO shows green and yellow
+            iOutputs.set(iLedGreen, tState.iMode == Status.ON || tState.iMode == Status.AUTO);
+            iOutputs.set(iLedYellow, tState.iMode == Status.MANUAL || tState.iMode == Status.AUTO);
+            iOutputs.set(iLedRed, tState.iMode == Status.OFF);
+            iOutputs.commit();
+            iApplied = tState;
+            journal(tState);
         }
-        else{
-            System.out.println("Controller: Command via SMS not supported! ");
+    }
+
+    /**
+     * Appends aState to the journal if its mode or target differ from the
+     * last record: a heat request flip alone is not worth an fsync. Called
+     * with iActuatorLock held, so the records follow the pins.
+     */
+    private void journal(State aState) {
+        if (iJournal == null || (iJournaled != null && aState.iMode == iJournaled.iMode && aState.iTarget == iJournaled.iTarget)) {
+            return;
         }
+        try {
+            iJournal.append(aState);
+            iJournaled = aState;
+        } catch (IOException ex) {
+            System.out.println("Controller: state not journaled: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads the pins back and rewrites the ones that are not at the level of
+     * the current state. Returns whether they all were.
+     */
+    public boolean verifyOutputs() throws IOException {
+        synchronized (iActuatorLock) {
+            int tMismatch = iOutputs.verify();
+            if (tMismatch == 0) {
+                return true;
+            }
+            System.out.println("Controller: outputs " + Integer.toBinaryString(tMismatch) + " not as expected, rewriting");
+            iOutputs.commit();
+            return false;
+        }
+    }
+
+    public Command executeCommand(SMS tSMS) {
+        //used via SMS
+        return executeCommand(Interpreter.getInstance().parse(tSMS));
+    }
 
+    /**
+     * Executes the mode commands of aCommand and returns its Command, the
+     * others are answered by the Thermostat.
+     */
+    public Command executeCommand(ParsedCommand aCommand) {
+        Command tCmd = aCommand.getCommand();
+        Event tEvent;
+        switch (tCmd) {
+            case ON:
+                tEvent = Event.ON;
+                break;
+            case MANUAL:
+                tEvent = Event.MANUAL;
+                break;
+            case OFF:
+                tEvent = Event.OFF;
+                break;
+            case AUTO:
+                double tTarget = aCommand.getTarget();
+                if (!Double.isNaN(tTarget)) {
+                    setTarget(tTarget);
+                }
+                tEvent = Event.AUTO;
+                break;
+            case STATUS:
+            case HELP:
+            case PROGRAM_HOUR:
+            case PROGRAM_WEEK:
+            case PROGRAM_OFF:
+            case REGISTER_NUMBER:
+                //answered by the Thermostat
+                return tCmd;
+            default:
+                System.out.println("Controller: Command via SMS not supported! ");
+                return tCmd;
+        }
+        try {
+            State tBefore = iState.get();
+            if (transition(tEvent) == tBefore) {
+                System.out.println("SMS received: command not executed, already " + tBefore.iMode);
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        return tCmd;
     }
 
 }
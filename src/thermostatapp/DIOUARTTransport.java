@@ -0,0 +1,128 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import jdk.dio.DeviceManager;
+import jdk.dio.uart.UART;
+import jdk.dio.uart.UARTConfig;
+import jdk.dio.uart.UARTEvent;
+import jdk.dio.uart.UARTEventListener;
+
+/**
+ * SerialTransport over a jdk.dio UART, e.g. "ttyAMA0". The UART is a
+ * ByteChannel: reads and writes go straight to the ByteBuffer, waiting is
+ * done with the receive timeout and read readiness with the
+ * INPUT_DATA_AVAILABLE event.
+ *
+ * @author Ste
+ */
+public class DIOUARTTransport implements SerialTransport {
+
+    //the shortest receive timeout, used for reads that must not wait
+    private static final int NO_WAIT = 1;
+
+    private final String iDevice;
+    private UART iUART;
+    private int iReceiveTimeout = -1;
+    private volatile SerialReadListener iListener;
+
+    public DIOUARTTransport(String aDevice) {
+        iDevice = aDevice;
+    }
+
+    @Override
+    public synchronized void open(int aBaudRate) throws IOException {
+        close();
+        UARTConfig tConfig = new UARTConfig(iDevice, 0, aBaudRate, UARTConfig.DATABITS_8, UARTConfig.PARITY_NONE, UARTConfig.STOPBITS_1, UARTConfig.FLOWCONTROL_NONE);
+        iUART = (UART) DeviceManager.open(tConfig);
+        iReceiveTimeout = -1;
+        if (iListener != null) {
+            registerListener();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (iUART != null) {
+            try {
+                iUART.close();
+            } catch (IOException ex) {
+                System.out.println("Exception closing UART " + ex);
+            }
+            iUART = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return iUART != null && iUART.isOpen();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer aBuffer) throws IOException {
+        return read(aBuffer, 0);
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer aBuffer, long aTimeout) throws IOException {
+        UART tUART = checkOpen();
+        int tTimeout = (int) Math.max(NO_WAIT, Math.min(aTimeout, Integer.MAX_VALUE));
+        if (tTimeout != iReceiveTimeout) {
+            tUART.setReceiveTimeout(tTimeout);
+            iReceiveTimeout = tTimeout;
+        }
+        int n = tUART.read(aBuffer);
+        return n < 0 ? 0 : n;
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer aBuffer) throws IOException {
+        UART tUART = checkOpen();
+        int n = 0;
+        while (aBuffer.hasRemaining()) {
+            n += tUART.write(aBuffer);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void setReadListener(SerialReadListener aListener) {
+        iListener = aListener;
+        if (iUART != null) {
+            try {
+                registerListener();
+            } catch (IOException ex) {
+                System.out.println("DIOUARTTransport: cannot set the listener: " + ex.getMessage());
+            }
+        }
+    }
+
+    private void registerListener() throws IOException {
+        if (iListener == null) {
+            iUART.setEventListener(UARTEvent.INPUT_DATA_AVAILABLE, null);
+            return;
+        }
+        iUART.setEventListener(UARTEvent.INPUT_DATA_AVAILABLE, new UARTEventListener() {
+            @Override
+            public void eventDispatched(UARTEvent aEvent) {
+                SerialReadListener tListener = iListener;
+                if (tListener != null) {
+                    tListener.dataAvailable(DIOUARTTransport.this);
+                }
+            }
+        });
+    }
+
+    private UART checkOpen() throws IOException {
+        if (iUART == null) {
+            throw new IOException("UART " + iDevice + " is not open");
+        }
+        return iUART;
+    }
+
+}
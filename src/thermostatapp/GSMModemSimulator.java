@@ -0,0 +1,613 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import com.pi4j.io.serial.Serial;
+import com.pi4j.io.serial.SerialDataEvent;
+import com.pi4j.io.serial.SerialDataListener;
+import com.pi4j.io.serial.SerialPortException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process stand-in for the GSM module behind the pi4j Serial interface, to
+ * exercise and load test the SMSGateway without hardware: new
+ * SMSGateway(new GSMModemSimulator()). Understands AT, ATE, ATI, AT&amp;W,
+ * AT+IPR, AT+CGMR, AT+GSN, AT+CMGF, AT+CNMI, AT+CMGL, AT+CMGR, AT+CMGD, AT+CPMS, AT+CMGS, AT+CSQ,
+ * AT+CREG and AT+COPS, in text and PDU mode. Replies are released after a
+ * configurable per-command delay, and only if the port is opened at the rate
+ * the modem is set to.
+ *
+ * @author Ste
+ */
+public class GSMModemSimulator implements Serial {
+
+    static final private char ctrlZ = (char) 26;
+    static final private char ESC = (char) 27;
+
+    private final int iCapacity;
+    private final TreeMap<Integer, StoredSMS> iStore = new TreeMap<Integer, StoredSMS>();
+    private final List<String[]> iSent = new ArrayList<String[]>();
+    private final Map<String, Long> iDelays = new LinkedHashMap<String, Long>();
+    private final LinkedList<Reply> iPending = new LinkedList<Reply>();
+    private final StringBuilder iOutput = new StringBuilder();
+    private final StringBuilder iInput = new StringBuilder();
+    private final PDUEncoder iPDUEncoder = new PDUEncoder();
+    private final SimpleDateFormat iDateFormat = new SimpleDateFormat("yy/MM/dd,HH:mm:ss");
+
+    private int iOutputPosition = 0;
+    private long iDefaultDelay = 0;
+    private boolean iOpen = false;
+    private boolean iShutdown = false;
+    private boolean iPowered = true;
+    private int iPortRate = 0;
+    private int iModemRate = 9600;
+    private boolean iEcho = true;
+    private boolean iPDUMode = false;
+    private boolean iIndications = false;
+    private String iPendingCMGS = null;
+    private int iMessageReference = 0;
+    private int iSignal = 20;
+    private int iRegistration = 1;
+    private String iOperator = "Telia";
+    private int iMonitorInterval = Serial.DEFAULT_MONITOR_INTERVAL;
+    private final List<SerialDataListener> iListeners = new CopyOnWriteArrayList<SerialDataListener>();
+    private Thread iMonitor;
+    //above this rate every NOISE_PERIOD-th byte sent is garbled
+    private int iMaxCleanRate = Integer.MAX_VALUE;
+    private int iSentBytes = 0;
+    private static final int NOISE_PERIOD = 50;
+
+    public GSMModemSimulator() {
+        this(30);
+    }
+
+    public GSMModemSimulator(int aCapacity) {
+        iCapacity = aCapacity;
+        iDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    //--- scripting
+
+    /**
+     * Delay before the reply of the commands starting with aCommandPrefix,
+     * e.g. "AT+CMGL".
+     */
+    public synchronized void setDelay(String aCommandPrefix, long aMillis) {
+        iDelays.put(aCommandPrefix, aMillis);
+    }
+
+    public synchronized void setDefaultDelay(long aMillis) {
+        iDefaultDelay = aMillis;
+    }
+
+    public synchronized void setModemRate(int aRate) {
+        iModemRate = aRate;
+    }
+
+    public synchronized int getModemRate() {
+        return iModemRate;
+    }
+
+    /**
+     * A line that only carries rates up to aRate cleanly: faster, a bit of
+     * one byte in NOISE_PERIOD the modem sends is flipped.
+     */
+    public synchronized void setMaxCleanRate(int aRate) {
+        iMaxCleanRate = aRate;
+    }
+
+    /**
+     * Brown-out: while off the modem ignores everything, and it comes back
+     * with the volatile settings lost (echo on, text mode, no indications).
+     * The rate saved with AT&W is kept.
+     */
+    public synchronized void setPowered(boolean aPowered) {
+        if (!aPowered) {
+            iPending.clear();
+            iInput.setLength(0);
+            iPendingCMGS = null;
+            iEcho = true;
+            iPDUMode = false;
+            iIndications = false;
+        }
+        iPowered = aPowered;
+    }
+
+    public synchronized void setNetwork(int aSignal, int aRegistration, String aOperator) {
+        iSignal = aSignal;
+        iRegistration = aRegistration;
+        iOperator = aOperator;
+    }
+
+    /**
+     * A message arrives from the network: stored in the first free slot and,
+     * if enabled with AT+CNMI, signalled with +CMTI. Returns the slot or -1
+     * if the store is full.
+     */
+    public synchronized int deliver(String aSender, String aText, long aTimestamp) {
+        for (int i = 1; i <= iCapacity; i++) {
+            if (!iStore.containsKey(i)) {
+                iStore.put(i, new StoredSMS(aSender, aText, aTimestamp));
+                if (iIndications) {
+                    queue("\r\n+CMTI: \"SM\"," + i + "\r\n", 0);
+                }
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Fills the store with aCount synthetic messages, already read, from
+     * aSender, one minute apart up to now.
+     */
+    public synchronized void populate(int aCount, String aSender) {
+        long tNow = System.currentTimeMillis();
+        for (int i = 0; i < aCount; i++) {
+            int tSlot = deliver(aSender, "Synthetic message " + i, tNow - (aCount - i) * 60 * 1000L);
+            if (tSlot < 0) {
+                return;
+            }
+            iStore.get(tSlot).iRead = true;
+        }
+    }
+
+    public synchronized int getStoredCount() {
+        return iStore.size();
+    }
+
+    /**
+     * Recipient and text of every message sent with AT+CMGS.
+     */
+    public synchronized List<String[]> getSentMessages() {
+        return new ArrayList<String[]>(iSent);
+    }
+
+    //--- Serial
+
+    @Override
+    public synchronized void open(String aDevice, int aBaudRate) throws SerialPortException {
+        if (iShutdown) {
+            throw new SerialPortException("shut down");
+        }
+        iOpen = true;
+        iPortRate = aBaudRate;
+        iInput.setLength(0);
+    }
+
+    @Override
+    public synchronized void close() throws IllegalStateException {
+        iOpen = false;
+        iPending.clear();
+        iOutput.setLength(0);
+        iOutputPosition = 0;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return iOpen;
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return !iOpen;
+    }
+
+    @Override
+    public void flush() throws IllegalStateException {
+    }
+
+    @Override
+    public synchronized char read() throws IllegalStateException {
+        checkOpen();
+        release();
+        if (iOutputPosition >= iOutput.length()) {
+            return 0;
+        }
+        char c = iOutput.charAt(iOutputPosition++);
+        if (iOutputPosition == iOutput.length()) {
+            iOutput.setLength(0);
+            iOutputPosition = 0;
+        }
+        return c;
+    }
+
+    @Override
+    public synchronized int availableBytes() throws IllegalStateException {
+        checkOpen();
+        release();
+        return iOutput.length() - iOutputPosition;
+    }
+
+    @Override
+    public synchronized void write(char aChar) throws IllegalStateException {
+        checkOpen();
+        if (!iPowered || iPortRate != iModemRate) {
+            //off, or wrong rate: the modem only sees noise
+            return;
+        }
+        if (iPendingCMGS != null) {
+            payload(aChar);
+            return;
+        }
+        if (iEcho) {
+            queue(String.valueOf(aChar), 0);
+        }
+        if (aChar == '\r') {
+            String tCommand = iInput.toString().trim();
+            iInput.setLength(0);
+            if (tCommand.length() > 0) {
+                execute(tCommand);
+            }
+        } else if (aChar != '\n') {
+            iInput.append(aChar);
+        }
+    }
+
+    @Override
+    public synchronized void write(char[] aData) throws IllegalStateException {
+        for (char c : aData) {
+            write(c);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte aData) throws IllegalStateException {
+        write((char) (aData & 0xFF));
+    }
+
+    @Override
+    public synchronized void write(byte[] aData) throws IllegalStateException {
+        for (byte b : aData) {
+            write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(String aData) throws IllegalStateException {
+        write(aData.toCharArray());
+    }
+
+    @Override
+    public synchronized void writeln(String aData) throws IllegalStateException {
+        write(aData + "\r\n");
+    }
+
+    @Override
+    public synchronized void write(String aData, String... aArgs) throws IllegalStateException {
+        write(String.format(aData, (Object[]) aArgs));
+    }
+
+    @Override
+    public synchronized void writeln(String aData, String... aArgs) throws IllegalStateException {
+        writeln(String.format(aData, (Object[]) aArgs));
+    }
+
+    /**
+     * Like pi4j, a monitor thread reads what is available every
+     * getMonitorInterval() ms and hands it to the listeners.
+     */
+    @Override
+    public synchronized void addListener(SerialDataListener... aListeners) {
+        iListeners.addAll(Arrays.asList(aListeners));
+        if (iMonitor != null) {
+            return;
+        }
+        iMonitor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder tData = new StringBuilder();
+                while (!Thread.currentThread().isInterrupted()) {
+                    tData.setLength(0);
+                    synchronized (GSMModemSimulator.this) {
+                        if (iShutdown) {
+                            return;
+                        }
+                        if (iOpen) {
+                            while (availableBytes() > 0) {
+                                tData.append(read());
+                            }
+                        }
+                    }
+                    if (tData.length() > 0) {
+                        SerialDataEvent tEvent = new SerialDataEvent(GSMModemSimulator.this, tData.toString());
+                        for (SerialDataListener tListener : iListeners) {
+                            tListener.dataReceived(tEvent);
+                        }
+                    }
+                    try {
+                        Thread.sleep(getMonitorInterval());
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }, "GSMModemSimulator");
+        iMonitor.setDaemon(true);
+        iMonitor.start();
+    }
+
+    @Override
+    public synchronized void removeListener(SerialDataListener... aListeners) {
+        iListeners.removeAll(Arrays.asList(aListeners));
+        if (iListeners.isEmpty() && iMonitor != null) {
+            iMonitor.interrupt();
+            iMonitor = null;
+        }
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return iShutdown;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        close();
+        iShutdown = true;
+    }
+
+    @Override
+    public synchronized int getMonitorInterval() {
+        return iMonitorInterval;
+    }
+
+    @Override
+    public synchronized void setMonitorInterval(int aInterval) {
+        iMonitorInterval = aInterval;
+    }
+
+    //--- modem
+
+    private void execute(String aCommand) {
+        String tUpper = aCommand.toUpperCase();
+        long tDelay = delayFor(tUpper);
+        if (tUpper.equals("AT") || tUpper.equals("AT&W")) {
+            ok(tDelay);
+        } else if (tUpper.equals("ATI")) {
+            queue("\r\nSIMCOM_Ltd\r\nSIMCOM_SIM900\r\nRevision:1137B10SIM900M64_ST\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.equals("AT+CGMR")) {
+            queue("\r\nRevision:1137B10SIM900M64_ST\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.equals("AT+GSN")) {
+            queue("\r\n013227005311862\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.equals("ATE0") || tUpper.equals("ATE1")) {
+            iEcho = tUpper.equals("ATE1");
+            ok(tDelay);
+        } else if (tUpper.startsWith("AT+IPR=")) {
+            int tRate = parseInt(aCommand.substring(7));
+            if (tRate <= 0) {
+                error(tDelay);
+            } else {
+                ok(tDelay);
+                //the new rate applies to the next command
+                iModemRate = tRate;
+            }
+        } else if (tUpper.equals("AT+IPR?")) {
+            queue("\r\n+IPR: " + iModemRate + "\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.startsWith("AT+CMGF=")) {
+            iPDUMode = aCommand.substring(8).trim().equals("0");
+            ok(tDelay);
+        } else if (tUpper.equals("AT+CMGF?")) {
+            queue("\r\n+CMGF: " + (iPDUMode ? 0 : 1) + "\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.startsWith("AT+CNMI=")) {
+            String[] tFields = aCommand.substring(8).split(",");
+            iIndications = tFields.length > 1 && tFields[1].trim().equals("1");
+            ok(tDelay);
+        } else if (tUpper.startsWith("AT+CMGL")) {
+            list(aCommand.indexOf('=') < 0 ? "" : aCommand.substring(aCommand.indexOf('=') + 1).trim(), tDelay);
+        } else if (tUpper.startsWith("AT+CMGR=")) {
+            readMessage(parseInt(aCommand.substring(8)), tDelay);
+        } else if (tUpper.equals("AT+CMGD=?")) {
+            queue("\r\n+CMGD: (1-" + iCapacity + "),(0-4)\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.startsWith("AT+CMGD=")) {
+            delete(aCommand.substring(8), tDelay);
+        } else if (tUpper.equals("AT+CPMS?")) {
+            String tUsage = "\"SM\"," + iStore.size() + "," + iCapacity;
+            queue("\r\n+CPMS: " + tUsage + "," + tUsage + "," + tUsage + "\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.startsWith("AT+CMGS=")) {
+            iPendingCMGS = aCommand.substring(8).trim().replace("\"", "");
+            queue("\r\n> ", tDelay);
+        } else if (tUpper.equals("AT+CSQ")) {
+            queue("\r\n+CSQ: " + iSignal + ",0\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.equals("AT+CREG?")) {
+            queue("\r\n+CREG: 0," + iRegistration + "\r\n\r\nOK\r\n", tDelay);
+        } else if (tUpper.equals("AT+COPS?")) {
+            queue("\r\n+COPS: 0,0,\"" + iOperator + "\"\r\n\r\nOK\r\n", tDelay);
+        } else {
+            error(tDelay);
+        }
+    }
+
+    private void list(String aStatus, long aDelay) {
+        String tStatus = aStatus.replace("\"", "").toUpperCase();
+        StringBuilder tReply = new StringBuilder();
+        for (Map.Entry<Integer, StoredSMS> tEntry : iStore.entrySet()) {
+            StoredSMS tSMS = tEntry.getValue();
+            boolean tMatches = tStatus.equals("ALL") || tStatus.equals("4")
+                    || ((tStatus.equals("REC UNREAD") || tStatus.equals("0")) && !tSMS.iRead)
+                    || ((tStatus.equals("REC READ") || tStatus.equals("1")) && tSMS.iRead);
+            if (!tMatches) {
+                continue;
+            }
+            if (iPDUMode) {
+                String tPDU = iPDUEncoder.encodeDeliver(tSMS.iSender, tSMS.iText, tSMS.iTimestamp);
+                tReply.append("\r\n+CMGL: ").append(tEntry.getKey()).append(',').append(tSMS.iRead ? 1 : 0)
+                        .append(",,").append(iPDUEncoder.getTPDULength()).append("\r\n").append(tPDU);
+            } else {
+                tReply.append("\r\n+CMGL: ").append(tEntry.getKey()).append(",\"").append(tSMS.iRead ? "REC READ" : "REC UNREAD")
+                        .append("\",\"").append(tSMS.iSender).append("\",\"\",\"").append(timestamp(tSMS.iTimestamp))
+                        .append("\"\r\n").append(tSMS.iText);
+            }
+            tSMS.iRead = true;
+        }
+        tReply.append("\r\n\r\nOK\r\n");
+        queue(tReply.toString(), aDelay);
+    }
+
+    private void readMessage(int aIndex, long aDelay) {
+        StoredSMS tSMS = iStore.get(aIndex);
+        if (tSMS == null) {
+            queue("\r\n+CMS ERROR: 321\r\n", aDelay);
+            return;
+        }
+        if (iPDUMode) {
+            String tPDU = iPDUEncoder.encodeDeliver(tSMS.iSender, tSMS.iText, tSMS.iTimestamp);
+            queue("\r\n+CMGR: " + (tSMS.iRead ? 1 : 0) + ",," + iPDUEncoder.getTPDULength() + "\r\n" + tPDU + "\r\n\r\nOK\r\n", aDelay);
+        } else {
+            queue("\r\n+CMGR: \"" + (tSMS.iRead ? "REC READ" : "REC UNREAD") + "\",\"" + tSMS.iSender + "\",\"\",\""
+                    + timestamp(tSMS.iTimestamp) + "\"\r\n" + tSMS.iText + "\r\n\r\nOK\r\n", aDelay);
+        }
+        tSMS.iRead = true;
+    }
+
+    /**
+     * AT+CMGD=<index>[,<delflag>]: 1 read, 2 read and sent, 3 all but unread
+     * sent, 4 all. This store only has received messages.
+     */
+    private void delete(String aArguments, long aDelay) {
+        String[] tFields = aArguments.split(",");
+        int tIndex = parseInt(tFields[0]);
+        int tFlag = tFields.length > 1 ? parseInt(tFields[1]) : 0;
+        if (tFlag == 0) {
+            iStore.remove(tIndex);
+        } else if (tFlag == 4) {
+            iStore.clear();
+        } else if (tFlag > 0) {
+            List<Integer> tRead = new ArrayList<Integer>();
+            for (Map.Entry<Integer, StoredSMS> tEntry : iStore.entrySet()) {
+                if (tEntry.getValue().iRead) {
+                    tRead.add(tEntry.getKey());
+                }
+            }
+            for (Integer i : tRead) {
+                iStore.remove(i);
+            }
+        } else {
+            error(aDelay);
+            return;
+        }
+        ok(aDelay);
+    }
+
+    /**
+     * Collects the CMGS text until ctrl-Z, ESC cancels it.
+     */
+    private void payload(char aChar) {
+        if (aChar == ESC) {
+            iPendingCMGS = null;
+            iInput.setLength(0);
+            ok(0);
+        } else if (aChar == ctrlZ) {
+            iSent.add(new String[]{iPendingCMGS, iInput.toString()});
+            iPendingCMGS = null;
+            iInput.setLength(0);
+            iMessageReference = (iMessageReference + 1) % 256;
+            queue("\r\n+CMGS: " + iMessageReference + "\r\n\r\nOK\r\n", delayFor("AT+CMGS"));
+        } else {
+            iInput.append(aChar);
+        }
+    }
+
+    private String timestamp(long aTimestamp) {
+        return iDateFormat.format(new Date(aTimestamp)) + "+00";
+    }
+
+    private long delayFor(String aCommand) {
+        long tDelay = iDefaultDelay;
+        int tLongest = -1;
+        for (Map.Entry<String, Long> tEntry : iDelays.entrySet()) {
+            if (aCommand.startsWith(tEntry.getKey()) && tEntry.getKey().length() > tLongest) {
+                tLongest = tEntry.getKey().length();
+                tDelay = tEntry.getValue();
+            }
+        }
+        return tDelay;
+    }
+
+    private void ok(long aDelay) {
+        queue("\r\nOK\r\n", aDelay);
+    }
+
+    private void error(long aDelay) {
+        queue("\r\nERROR\r\n", aDelay);
+    }
+
+    /**
+     * Replies leave in order: one cannot overtake a slower one before it.
+     */
+    private void queue(String aText, long aDelay) {
+        long tReleaseAt = System.currentTimeMillis() + aDelay;
+        if (!iPending.isEmpty()) {
+            tReleaseAt = Math.max(tReleaseAt, iPending.getLast().iReleaseAt);
+        }
+        iPending.add(new Reply(aText, tReleaseAt));
+        release();
+    }
+
+    private void release() {
+        long tNow = System.currentTimeMillis();
+        while (!iPending.isEmpty() && iPending.getFirst().iReleaseAt <= tNow) {
+            String tText = iPending.removeFirst().iText;
+            for (int i = 0; i < tText.length(); i++) {
+                char c = tText.charAt(i);
+                if (iPortRate > iMaxCleanRate && ++iSentBytes % NOISE_PERIOD == 0) {
+                    c ^= 0x04;
+                }
+                iOutput.append(c);
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (!iOpen) {
+            throw new IllegalStateException("Serial connection is not open");
+        }
+    }
+
+    private static int parseInt(String aString) {
+        try {
+            return Integer.parseInt(aString.trim());
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static class StoredSMS {
+
+        final String iSender;
+        final String iText;
+        final long iTimestamp;
+        boolean iRead;
+
+        StoredSMS(String aSender, String aText, long aTimestamp) {
+            iSender = aSender;
+            iText = aText;
+            iTimestamp = aTimestamp;
+        }
+    }
+
+    private static class Reply {
+
+        final String iText;
+        final long iReleaseAt;
+
+        Reply(String aText, long aReleaseAt) {
+            iText = aText;
+            iReleaseAt = aReleaseAt;
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop heating for the AUTO mode. Every TICK_PERIOD it reads the
+ * cached temperature and asks the Controller for heat or not, either with a
+ * hysteresis band around the target or by time-proportioning: a PID output
+ * in 0..1 is the share of each WINDOW the relay is on. The Controller
+ * ignores the demand outside AUTO.
+ *
+ * tick() only works on primitives and its own time (ticks * period), so it
+ * allocates nothing and gives the same outputs for the same inputs. Without
+ * a temperature it asks for no heat.
+ *
+ * @author Ste
+ */
+public class HeatingControl {
+
+    public enum Algorithm {
+        HYSTERESIS,
+        PID
+    }
+
+    static final long TICK_PERIOD = 1000;
+    //time-proportioning window and the shortest time the relay stays on or off
+    static final long WINDOW = 10 * 60 * 1000;
+    static final long MIN_SWITCH_TIME = 60 * 1000;
+    static final double HYSTERESIS_BAND = 0.5;
+
+    //full output for 2 degrees below target, integral time 30 minutes
+    static final double KP = 0.5;
+    static final double KI = KP / (30 * 60);
+    static final double KD = 0;
+
+    private final Controller iController;
+    private final TemperatureSensors iSensors;
+    private final long iTickPeriod;
+    private final long iWindow;
+    private volatile Algorithm iAlgorithm = Algorithm.HYSTERESIS;
+    private ScheduledExecutorService iScheduler;
+
+    //tick state, only touched by the tick thread
+    private long iTicks = 0;
+    private boolean iDemand = false;
+    private double iIntegral = 0;
+    private double iLastTemperature = Double.NaN;
+    private long iWindowStart = 0;
+    private long iOnTime = 0;
+    private volatile double iOutput = 0;
+
+    public HeatingControl(Controller aController, TemperatureSensors aSensors) {
+        this(aController, aSensors, TICK_PERIOD, WINDOW);
+    }
+
+    HeatingControl(Controller aController, TemperatureSensors aSensors, long aTickPeriod, long aWindow) {
+        iController = aController;
+        iSensors = aSensors;
+        iTickPeriod = aTickPeriod;
+        iWindow = aWindow;
+        reset(0);
+    }
+
+    public void setAlgorithm(Algorithm aAlgorithm) {
+        iAlgorithm = aAlgorithm;
+    }
+
+    public Algorithm getAlgorithm() {
+        return iAlgorithm;
+    }
+
+    /**
+     * Last PID output, 0..1, or 1/0 for the hysteresis.
+     */
+    public double getOutput() {
+        return iOutput;
+    }
+
+    public synchronized void start() {
+        if (iScheduler != null) {
+            return;
+        }
+        iScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable aRunnable) {
+                Thread tThread = new Thread(aRunnable, "HeatingControl");
+                tThread.setDaemon(true);
+                return tThread;
+            }
+        });
+        iScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    boolean tDemand = tick(iSensors.getTemperature(), iController.getTarget(), iController.getState() == Status.AUTO);
+                    iController.transition(tDemand ? Controller.Event.DEMAND_ON : Controller.Event.DEMAND_OFF);
+                } catch (IOException | RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 0, iTickPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (iScheduler != null) {
+            iScheduler.shutdownNow();
+            iScheduler = null;
+        }
+    }
+
+    /**
+     * One control step: returns whether to heat. While not aActive the loop
+     * is kept reset, so AUTO always starts from scratch.
+     */
+    boolean tick(double aTemperature, double aTarget, boolean aActive) {
+        long tNow = iTicks++ * iTickPeriod;
+        if (!aActive || Double.isNaN(aTemperature)) {
+            reset(tNow);
+            return false;
+        }
+        if (iAlgorithm == Algorithm.HYSTERESIS) {
+            if (aTemperature <= aTarget - HYSTERESIS_BAND / 2) {
+                iDemand = true;
+            } else if (aTemperature >= aTarget + HYSTERESIS_BAND / 2) {
+                iDemand = false;
+            }
+            iOutput = iDemand ? 1 : 0;
+            return iDemand;
+        }
+        double tDt = iTickPeriod / 1000.0;
+        double tError = aTarget - aTemperature;
+        //derivative on the measurement: no kick when the target changes
+        double tDerivative = Double.isNaN(iLastTemperature) ? 0 : (aTemperature - iLastTemperature) / tDt;
+        iLastTemperature = aTemperature;
+        double tOutput = KP * tError + KI * (iIntegral + tError * tDt) - KD * tDerivative;
+        //anti-windup: integrate only while the output is not saturated
+        if (tOutput > 0 && tOutput < 1) {
+            iIntegral += tError * tDt;
+        }
+        iOutput = Math.max(0, Math.min(1, tOutput));
+        if (tNow - iWindowStart >= iWindow) {
+            iWindowStart = tNow;
+            iOnTime = (long) (iOutput * iWindow);
+            //too short a pulse or pause only wears the relay
+            if (iOnTime < MIN_SWITCH_TIME) {
+                iOnTime = 0;
+            } else if (iWindow - iOnTime < MIN_SWITCH_TIME) {
+                iOnTime = iWindow;
+            }
+        }
+        iDemand = tNow - iWindowStart < iOnTime;
+        return iDemand;
+    }
+
+    private void reset(long aNow) {
+        iDemand = false;
+        iIntegral = 0;
+        iLastTemperature = Double.NaN;
+        //a new window starts at the next active tick
+        iWindowStart = aNow - iWindow;
+        iOnTime = 0;
+        iOutput = 0;
+    }
+
+}
@@ -7,12 +7,85 @@
 package thermostatapp;
 
 /**
+ * Parses the text of an SMS into a ParsedCommand:
+ *
+ *   on | off | manual | status | help
+ *   auto [temp]
+ *   register number
+ *   program off
+ *   program [days] time mode [temp]
+ *
+ * where days is a list like "mon,wed", "mon-fri", "weekdays", time is
+ * "6:30", "06.30" or "7", mode is on, off, manual or auto (temp only for
+ * auto) and temp is "21", "21.5", "21,5" or "21C". The keywords are
+ * looked up case-insensitively in KeywordTrie, with Italian and Swedish
+ * aliases, and the arguments are read in place: a command without
+ * arguments allocates nothing.
  *
  * @author Ste
  */
 public class Interpreter {
-    
+
+    //keyword -> command, the program variants as PROGRAM_HOUR
+    private static final Object[][] COMMAND_WORDS = {
+        {Command.ON, "on", "acceso", "accendi", "p\u00e5"},
+        {Command.OFF, "off", "spento", "spegni", "av"},
+        {Command.MANUAL, "manual", "manuale", "manuell"},
+        {Command.AUTO, "auto", "automatico", "automatisk"},
+        {Command.STATUS, "status", "stato"},
+        {Command.HELP, "help", "aiuto", "hj\u00e4lp", "?"},
+        {Command.REGISTER_NUMBER, "register", "registra", "registrera"},
+        {Command.PROGRAM_HOUR, "program", "programma"}
+    };
+
+    //day names, bit 0 is Monday as in WeeklyProgram
+    private static final String[][] DAY_WORDS = {
+        {"mon", "monday", "lun", "lunedi", "luned\u00ec", "m\u00e5n", "m\u00e5ndag"},
+        {"tue", "tuesday", "mar", "martedi", "marted\u00ec", "tis", "tisdag"},
+        {"wed", "wednesday", "mer", "mercoledi", "mercoled\u00ec", "ons", "onsdag"},
+        {"thu", "thursday", "gio", "giovedi", "gioved\u00ec", "tor", "torsdag"},
+        {"fri", "friday", "ven", "venerdi", "venerd\u00ec", "fre", "fredag"},
+        {"sat", "saturday", "sab", "sabato", "l\u00f6r", "l\u00f6rdag"},
+        {"sun", "sunday", "dom", "domenica", "s\u00f6n", "s\u00f6ndag"}
+    };
+    private static final String[] DAILY_WORDS = {"daily", "everyday", "sempre", "dagligen"};
+    private static final String[] WEEKDAYS_WORDS = {"weekdays", "feriali", "vardagar"};
+    private static final String[] WEEKEND_WORDS = {"weekend", "festivi", "helg"};
+
+    private static final Command[] COMMANDS = Command.values();
+    private static final int MIN_PHONE_DIGITS = 6;
+    private static final int MAX_PHONE_DIGITS = 15;
+
+    private final KeywordTrie iCommands = new KeywordTrie();
+    private final KeywordTrie iDays = new KeywordTrie();
+    //one result per thread for interprete(SMS)
+    private final ThreadLocal<ParsedCommand> iResults = new ThreadLocal<ParsedCommand>() {
+        @Override
+        protected ParsedCommand initialValue() {
+            return new ParsedCommand();
+        }
+    };
+
     private Interpreter() {
+        for (Object[] tWords : COMMAND_WORDS) {
+            for (int i = 1; i < tWords.length; i++) {
+                iCommands.put((String) tWords[i], ((Command) tWords[0]).ordinal());
+            }
+        }
+        for (int tDay = 0; tDay < DAY_WORDS.length; tDay++) {
+            for (String tWord : DAY_WORDS[tDay]) {
+                iDays.put(tWord, 1 << tDay);
+            }
+        }
+        for (String tWord : DAILY_WORDS) {
+            iDays.put(tWord, WeeklyProgram.DAILY);
+        }
+        for (String tWord : WEEKDAYS_WORDS) {
+            iDays.put(tWord, WeeklyProgram.WEEKDAYS);
+        }
+        for (String tWord : WEEKEND_WORDS) {
+            iDays.put(tWord, WeeklyProgram.WEEKEND);
+        }
     }
     
     public static Interpreter getInstance() {
@@ -24,22 +97,242 @@ public class Interpreter {
     }
     
     public Command interprete(SMS aSMS){
-        String tText = new String(aSMS.getText());
-        //simple word commands
-        //to cout words try str.split("\\w+").length
-        if (tText != null){
-            tText = tText.trim();
-            if (tText.equalsIgnoreCase(Command.ON.toString())) return Command.ON;
-            else if (tText.equalsIgnoreCase(Command.OFF.toString())) return Command.OFF;
-            else if (tText.equalsIgnoreCase(Command.MANUAL.toString())) return Command.MANUAL;
-            else if (tText.equalsIgnoreCase(Command.STATUS.toString())) return Command.STATUS;
-            else if (tText.equalsIgnoreCase(Command.HELP.toString())) return Command.HELP;
-            else {
-                            System.out.println("Interpreter: Command not supported: "+tText);
-            return Command.NOT_VALID;
-            }
-        }       
-        System.out.println("Interpreter: Command = null");
-        return Command.NOT_VALID;
+        return parse(aSMS).getCommand();
+    }
+
+    /**
+     * Parses the text of aSMS into the ParsedCommand of the calling thread,
+     * valid until its next call.
+     */
+    public ParsedCommand parse(SMS aSMS){
+        ParsedCommand tResult = iResults.get();
+        if (!parse(aSMS.getText(), tResult)) {
+            System.out.println("Interpreter: " + tResult.getErrorMessage());
+        }
+        return tResult;
+    }
+
+    /**
+     * Parses aText into aResult, false if it is not a valid command; then
+     * aResult holds the error.
+     */
+    public boolean parse(CharSequence aText, ParsedCommand aResult){
+        aResult.reset(aText == null ? "" : aText);
+        if (!aResult.nextWord()) {
+            return aResult.fail(ParsedCommand.Error.EMPTY);
+        }
+        int tKeyword = iCommands.get(aText, aResult.iWordStart, aResult.iWordEnd);
+        if (tKeyword == KeywordTrie.NOT_FOUND) {
+            return aResult.fail(ParsedCommand.Error.UNKNOWN_COMMAND);
+        }
+        Command tCommand = COMMANDS[tKeyword];
+        aResult.setCommand(tCommand);
+        switch (tCommand) {
+            case AUTO:
+                if (aResult.nextWord() && !temperature(aText, aResult)) {
+                    return false;
+                }
+                break;
+            case REGISTER_NUMBER:
+                if (!aResult.nextWord()) {
+                    return aResult.fail(ParsedCommand.Error.MISSING_ARGUMENT);
+                }
+                if (!phoneNumber(aText, aResult)) {
+                    return false;
+                }
+                break;
+            case PROGRAM_HOUR:
+                if (!program(aText, aResult)) {
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        if (aResult.nextWord()) {
+            return aResult.fail(ParsedCommand.Error.TOO_MANY_ARGUMENTS);
+        }
+        return true;
+    }
+
+    /**
+     * "off" or "[days] time mode [temp]" after "program".
+     */
+    private boolean program(CharSequence aText, ParsedCommand aResult) {
+        if (!aResult.nextWord()) {
+            return aResult.fail(ParsedCommand.Error.MISSING_ARGUMENT);
+        }
+        if (iCommands.get(aText, aResult.iWordStart, aResult.iWordEnd) == Command.OFF.ordinal()) {
+            aResult.setCommand(Command.PROGRAM_OFF);
+            return true;
+        }
+        if (!isDigit(aText.charAt(aResult.iWordStart))) {
+            int tDays = days(aText, aResult.iWordStart, aResult.iWordEnd);
+            if (tDays == 0) {
+                return aResult.fail(ParsedCommand.Error.BAD_DAYS);
+            }
+            aResult.setDays(tDays);
+            aResult.setCommand(Command.PROGRAM_WEEK);
+            if (!aResult.nextWord()) {
+                return aResult.fail(ParsedCommand.Error.MISSING_ARGUMENT);
+            }
+        }
+        int tMinute = time(aText, aResult.iWordStart, aResult.iWordEnd);
+        if (tMinute < 0) {
+            return aResult.fail(ParsedCommand.Error.BAD_TIME);
+        }
+        aResult.setMinute(tMinute);
+        if (!aResult.nextWord()) {
+            return aResult.fail(ParsedCommand.Error.MISSING_ARGUMENT);
+        }
+        int tKeyword = iCommands.get(aText, aResult.iWordStart, aResult.iWordEnd);
+        Status tMode;
+        if (tKeyword == Command.ON.ordinal()) {
+            tMode = Status.ON;
+        } else if (tKeyword == Command.OFF.ordinal()) {
+            tMode = Status.OFF;
+        } else if (tKeyword == Command.MANUAL.ordinal()) {
+            tMode = Status.MANUAL;
+        } else if (tKeyword == Command.AUTO.ordinal()) {
+            tMode = Status.AUTO;
+        } else {
+            return aResult.fail(ParsedCommand.Error.BAD_MODE);
+        }
+        aResult.setMode(tMode);
+        if (tMode == Status.AUTO && aResult.nextWord()) {
+            return temperature(aText, aResult);
+        }
+        return true;
+    }
+
+    /**
+     * Day mask of a list like "mon,wed-fri,weekend", 0 if not valid.
+     */
+    private int days(CharSequence aText, int aStart, int aEnd) {
+        int tMask = 0;
+        int tItem = aStart;
+        while (tItem < aEnd) {
+            int tItemEnd = tItem;
+            int tDash = -1;
+            while (tItemEnd < aEnd && aText.charAt(tItemEnd) != ',') {
+                if (aText.charAt(tItemEnd) == '-') {
+                    tDash = tItemEnd;
+                }
+                tItemEnd++;
+            }
+            if (tDash < 0) {
+                int tDays = iDays.get(aText, tItem, tItemEnd);
+                if (tDays <= 0) {
+                    return 0;
+                }
+                tMask |= tDays;
+            } else {
+                int tFrom = iDays.get(aText, tItem, tDash);
+                int tTo = iDays.get(aText, tDash + 1, tItemEnd);
+                if (tFrom <= 0 || tTo <= 0 || Integer.bitCount(tFrom) != 1 || Integer.bitCount(tTo) != 1) {
+                    return 0;
+                }
+                //wraps around the week: fri-mon
+                for (int tDay = Integer.numberOfTrailingZeros(tFrom); ; tDay = (tDay + 1) % 7) {
+                    tMask |= 1 << tDay;
+                    if ((1 << tDay) == tTo) {
+                        break;
+                    }
+                }
+            }
+            tItem = tItemEnd + 1;
+        }
+        return tMask;
+    }
+
+    /**
+     * Minute of the day of "h", "hh", "h:mm", "hh:mm" (or with a '.'), -1 if
+     * not valid.
+     */
+    static int time(CharSequence aText, int aStart, int aEnd) {
+        int tHour = 0;
+        int i = aStart;
+        while (i < aEnd && i - aStart < 2 && isDigit(aText.charAt(i))) {
+            tHour = tHour * 10 + aText.charAt(i++) - '0';
+        }
+        if (i == aStart || tHour > 23) {
+            return -1;
+        }
+        if (i == aEnd) {
+            return tHour * 60;
+        }
+        char tSeparator = aText.charAt(i++);
+        if ((tSeparator != ':' && tSeparator != '.') || aEnd - i != 2
+                || !isDigit(aText.charAt(i)) || !isDigit(aText.charAt(i + 1))) {
+            return -1;
+        }
+        int tMinute = (aText.charAt(i) - '0') * 10 + aText.charAt(i + 1) - '0';
+        return tMinute < 60 ? tHour * 60 + tMinute : -1;
+    }
+
+    /**
+     * The current word as a target: digits, an optional '.' or ',' and
+     * decimals, an optional C or degree sign.
+     */
+    private static boolean temperature(CharSequence aText, ParsedCommand aResult) {
+        int tEnd = aResult.iWordEnd;
+        if (tEnd > aResult.iWordStart && Character.toLowerCase(aText.charAt(tEnd - 1)) == 'c') {
+            tEnd--;
+        }
+        if (tEnd > aResult.iWordStart && aText.charAt(tEnd - 1) == '\u00b0') {
+            tEnd--;
+        }
+        long tMantissa = 0;
+        double tScale = 1;
+        boolean tDecimals = false;
+        int tDigits = 0;
+        for (int i = aResult.iWordStart; i < tEnd; i++) {
+            char c = aText.charAt(i);
+            if (isDigit(c) && tDigits < 9) {
+                tMantissa = tMantissa * 10 + (c - '0');
+                if (tDecimals) {
+                    tScale *= 10;
+                }
+                tDigits++;
+            } else if ((c == '.' || c == ',') && !tDecimals) {
+                tDecimals = true;
+            } else {
+                return aResult.fail(ParsedCommand.Error.BAD_TEMPERATURE);
+            }
+        }
+        double tValue = tMantissa / tScale;
+        if (tDigits == 0 || tValue < Controller.MIN_TARGET || tValue > Controller.MAX_TARGET) {
+            return aResult.fail(ParsedCommand.Error.BAD_TEMPERATURE);
+        }
+        aResult.setTarget(tValue);
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * The current word as an international number: '+' and
+     * MIN_PHONE_DIGITS to MAX_PHONE_DIGITS digits, the form the modem
+     * reports senders in, so a registered number can be authorized.
+     */
+    private static boolean phoneNumber(CharSequence aText, ParsedCommand aResult) {
+        int i = aResult.iWordStart;
+        if (aText.charAt(i) != '+') {
+            return aResult.fail(ParsedCommand.Error.BAD_PHONE_NUMBER);
+        }
+        i++;
+        int tDigits = aResult.iWordEnd - i;
+        if (tDigits < MIN_PHONE_DIGITS || tDigits > MAX_PHONE_DIGITS) {
+            return aResult.fail(ParsedCommand.Error.BAD_PHONE_NUMBER);
+        }
+        for (; i < aResult.iWordEnd; i++) {
+            if (!isDigit(aText.charAt(i))) {
+                return aResult.fail(ParsedCommand.Error.BAD_PHONE_NUMBER);
+            }
+        }
+        aResult.setPhoneNumber(aResult.iWordStart, aResult.iWordEnd);
+        return true;
     }
 }
@@ -0,0 +1,96 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.Arrays;
+
+/**
+ * Case-insensitive map from words to ints, for the keywords of the SMS
+ * commands. The nodes and edges are kept in parallel int and char arrays,
+ * the edges of a node as a linked list, so get() walks arrays and allocates
+ * nothing. Filled once, when the Interpreter is built.
+ *
+ * @author Ste
+ */
+class KeywordTrie {
+
+    static final int NOT_FOUND = -1;
+
+    //per node
+    private int[] iFirstEdge = new int[64];
+    private int[] iValue = new int[64];
+    private int iNodes;
+    //per edge
+    private char[] iEdgeChar = new char[64];
+    private int[] iEdgeTarget = new int[64];
+    private int[] iNextEdge = new int[64];
+    private int iEdges;
+
+    KeywordTrie() {
+        newNode();
+    }
+
+    /**
+     * Maps aWord to aValue (0 or more), replacing an earlier value.
+     */
+    void put(String aWord, int aValue) {
+        int tNode = 0;
+        for (int i = 0; i < aWord.length(); i++) {
+            char c = Character.toLowerCase(aWord.charAt(i));
+            int tChild = child(tNode, c);
+            if (tChild < 0) {
+                tChild = newNode();
+                newEdge(tNode, c, tChild);
+            }
+            tNode = tChild;
+        }
+        iValue[tNode] = aValue;
+    }
+
+    /**
+     * The value of the word aText[aStart, aEnd), NOT_FOUND if it is not a
+     * keyword.
+     */
+    int get(CharSequence aText, int aStart, int aEnd) {
+        int tNode = 0;
+        for (int i = aStart; i < aEnd && tNode >= 0; i++) {
+            tNode = child(tNode, Character.toLowerCase(aText.charAt(i)));
+        }
+        return tNode < 0 ? NOT_FOUND : iValue[tNode];
+    }
+
+    private int child(int aNode, char aChar) {
+        for (int e = iFirstEdge[aNode]; e >= 0; e = iNextEdge[e]) {
+            if (iEdgeChar[e] == aChar) {
+                return iEdgeTarget[e];
+            }
+        }
+        return -1;
+    }
+
+    private int newNode() {
+        if (iNodes == iValue.length) {
+            iFirstEdge = Arrays.copyOf(iFirstEdge, iNodes * 2);
+            iValue = Arrays.copyOf(iValue, iNodes * 2);
+        }
+        iFirstEdge[iNodes] = -1;
+        iValue[iNodes] = NOT_FOUND;
+        return iNodes++;
+    }
+
+    private void newEdge(int aFrom, char aChar, int aTo) {
+        if (iEdges == iEdgeChar.length) {
+            iEdgeChar = Arrays.copyOf(iEdgeChar, iEdges * 2);
+            iEdgeTarget = Arrays.copyOf(iEdgeTarget, iEdges * 2);
+            iNextEdge = Arrays.copyOf(iNextEdge, iEdges * 2);
+        }
+        iEdgeChar[iEdges] = aChar;
+        iEdgeTarget[iEdges] = aTo;
+        iNextEdge[iEdges] = iFirstEdge[aFrom];
+        iFirstEdge[aFrom] = iEdges++;
+    }
+
+}
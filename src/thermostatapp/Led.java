@@ -30,6 +30,14 @@ public class Led {
         iLED.setValue(iInitialStatus);
     }
     
+    /**
+     * Drives an already opened pin, e.g. a fake one in benchmarks.
+     */
+    Led(GPIOPin aPin) throws IOException{
+        iLED = aPin;
+        iLED.setValue(iInitialStatus);
+    }
+    
     public Led(int aPin, boolean aInitialStatus) throws IOException{
         iLED = (GPIOPin)DeviceManager.open(aPin);
         iInitialStatus = aInitialStatus;
@@ -49,6 +57,10 @@ public class Led {
         iLED.setValue(aValue);
     }
     
+    GPIOPin getPin(){
+        return iLED;
+    }
+    
     public boolean getValue() throws IOException{
         return iLED.getValue();
     }
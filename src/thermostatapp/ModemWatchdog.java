@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Notices a modem that stopped answering (brown-out, wedged UART). When
+ * nothing was answered for PROBE_INTERVAL it sends a plain AT, not logged;
+ * after MISSED_PROBES unanswered probes in a row it has the SMSGateway
+ * reopen the port and set the modem up again, and keeps doing so until the
+ * modem answers, waiting FIRST_RECONNECT_DELAY after the first failed
+ * attempt and twice as long after each next one, up to
+ * MAX_RECONNECT_DELAY. The time from the first missed probe to then is a
+ * recovery, averaged in getMeanTimeToRecovery().
+ *
+ * @author Ste
+ */
+public class ModemWatchdog {
+
+    static final long PROBE_INTERVAL = 5000;
+    static final long PROBE_TIMEOUT = 2000;
+    static final int MISSED_PROBES = 2;
+    static final long FIRST_RECONNECT_DELAY = 2000;
+    static final long MAX_RECONNECT_DELAY = 10 * 60 * 1000;
+
+    private final SMSGateway iGateway;
+    private final long iProbeInterval;
+    private Thread iThread;
+    private volatile boolean iRunning = false;
+
+    //start of the outage being recovered, 0 if the modem answers
+    private long iOutageStart = 0;
+    private int iMissed = 0;
+    private long iFirstMissed = 0;
+    //during an outage: when to try again and how long to wait after that
+    private long iNextReconnect = 0;
+    private long iReconnectDelay = FIRST_RECONNECT_DELAY;
+    private volatile int iRecoveries = 0;
+    private volatile long iTotalRecoveryTime = 0;
+    private volatile long iLastRecoveryTime = -1;
+    private volatile int iReconnects = 0;
+
+    public ModemWatchdog(SMSGateway aGateway) {
+        this(aGateway, PROBE_INTERVAL);
+    }
+
+    ModemWatchdog(SMSGateway aGateway, long aProbeInterval) {
+        iGateway = aGateway;
+        iProbeInterval = aProbeInterval;
+    }
+
+    public synchronized void start() {
+        if (iRunning) {
+            return;
+        }
+        iRunning = true;
+        iThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (iRunning) {
+                    whaitABit(iProbeInterval / 5);
+                    if (iRunning) {
+                        check();
+                    }
+                }
+            }
+        }, "ModemWatchdog");
+        iThread.setDaemon(true);
+        iThread.start();
+    }
+
+    public synchronized void stop() {
+        iRunning = false;
+        if (iThread != null) {
+            iThread.interrupt();
+            iThread = null;
+        }
+    }
+
+    private void check() {
+        if (iOutageStart != 0) {
+            //no more probing: reconnect until the modem is back
+            if (System.currentTimeMillis() >= iNextReconnect) {
+                reconnect();
+            }
+            return;
+        }
+        long tNow = System.currentTimeMillis();
+        if (tNow - iGateway.getLastAnswer() < iProbeInterval) {
+            //the modem is busy answering, no need to ask
+            return;
+        }
+        boolean tAnswered = probe();
+        if (!iRunning) {
+            return;
+        }
+        if (tAnswered) {
+            iMissed = 0;
+            iFirstMissed = 0;
+            return;
+        }
+        if (iMissed++ == 0) {
+            iFirstMissed = tNow;
+        }
+        System.out.println("ModemWatchdog: no answer to AT (" + iMissed + ")");
+        if (iMissed >= MISSED_PROBES) {
+            iOutageStart = iFirstMissed;
+            iMissed = 0;
+            iReconnectDelay = FIRST_RECONNECT_DELAY;
+            reconnect();
+        }
+    }
+
+    private void reconnect() {
+        iReconnects++;
+        if (iGateway.reconnect() && iRunning) {
+            long tRecovery = System.currentTimeMillis() - iOutageStart;
+            iLastRecoveryTime = tRecovery;
+            iTotalRecoveryTime += tRecovery;
+            iRecoveries++;
+            iOutageStart = 0;
+            System.out.println("ModemWatchdog: modem back after " + tRecovery + "ms, mean time to recovery " + getMeanTimeToRecovery() + "ms");
+        } else {
+            iNextReconnect = System.currentTimeMillis() + iReconnectDelay;
+            System.out.println("ModemWatchdog: modem still silent, next attempt in " + iReconnectDelay / 1000 + "s");
+            iReconnectDelay = Math.min(iReconnectDelay * 2, MAX_RECONNECT_DELAY);
+        }
+    }
+
+    private boolean probe() {
+        try {
+            return iGateway.submit(new ATCommand("AT", PROBE_TIMEOUT, ATCommand.PRIORITY_LOW, true)).get().isOK();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+    public int getRecoveries() {
+        return iRecoveries;
+    }
+
+    public int getReconnects() {
+        return iReconnects;
+    }
+
+    /**
+     * Milliseconds, -1 if the modem never had to be recovered.
+     */
+    public long getMeanTimeToRecovery() {
+        int tRecoveries = iRecoveries;
+        return tRecoveries == 0 ? -1 : iTotalRecoveryTime / tRecoveries;
+    }
+
+    public long getLastRecoveryTime() {
+        return iLastRecoveryTime;
+    }
+
+    public boolean isModemAnswering() {
+        return iOutageStart == 0;
+    }
+
+    private void whaitABit(long a) {
+        try {
+            Thread.sleep(a);
+        } catch (InterruptedException ex) {
+            //stop() wakes us up
+        }
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Samples signal (AT+CSQ), registration (AT+CREG?) and operator (AT+COPS?)
+ * every SAMPLE_PERIOD with low priority commands, keeping the last
+ * HISTORY_SIZE samples in primitive ring buffers. The latency of the SMS
+ * commands (network timestamp to execution) is tracked too: a latency
+ * outlier is explained by the samples taken while the SMS was on its way,
+ * so a late command can be told apart as deregistration, weak signal, or
+ * neither (operator, polling).
+ *
+ * @author Ste
+ */
+public class NetworkMonitor {
+
+    static final long SAMPLE_PERIOD = 60000;
+    //a day of samples
+    static final int HISTORY_SIZE = 1440;
+
+    static final int RSSI_UNKNOWN = 99;
+    //+CSQ rssi below this is a weak signal, about -101 dBm
+    static final int RSSI_WEAK = 6;
+
+    //+CREG <stat>
+    static final int REG_NOT_REGISTERED = 0;
+    static final int REG_HOME = 1;
+    static final int REG_SEARCHING = 2;
+    static final int REG_DENIED = 3;
+    static final int REG_UNKNOWN = 4;
+    static final int REG_ROAMING = 5;
+
+    //a command later than this, and than the usual latency, is an outlier
+    static final long OUTLIER_MIN_LATENCY = 30000;
+    private static final int OUTLIER_DEVIATIONS = 3;
+
+    private final SMSGateway iGateway;
+    private final long iSamplePeriod;
+    private Thread iThread;
+    private volatile boolean iRunning = false;
+
+    //guarded by this
+    private final long[] iSampleTimes = new long[HISTORY_SIZE];
+    private final byte[] iSampleRSSI = new byte[HISTORY_SIZE];
+    private final byte[] iSampleRegistration = new byte[HISTORY_SIZE];
+    private int iSampleNext = 0;
+    private int iSampleCount = 0;
+    private String iOperator = "";
+
+    //exponentially weighted latency mean and mean deviation, in ms
+    private double iLatencyMean = -1;
+    private double iLatencyDeviation = 0;
+    private int iCommands = 0;
+    private int iOutliers = 0;
+    private int iOutliersDeregistered = 0;
+    private int iOutliersWeakSignal = 0;
+
+    public NetworkMonitor(SMSGateway aGateway) {
+        this(aGateway, SAMPLE_PERIOD);
+    }
+
+    NetworkMonitor(SMSGateway aGateway, long aSamplePeriod) {
+        iGateway = aGateway;
+        iSamplePeriod = aSamplePeriod;
+    }
+
+    public synchronized void start() {
+        if (iRunning) {
+            return;
+        }
+        iRunning = true;
+        iThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (iRunning) {
+                    sample();
+                    whaitABit(iSamplePeriod);
+                }
+            }
+        }, "NetworkMonitor");
+        iThread.setDaemon(true);
+        iThread.start();
+    }
+
+    public synchronized void stop() {
+        iRunning = false;
+        if (iThread != null) {
+            iThread.interrupt();
+            iThread = null;
+        }
+    }
+
+    /**
+     * Queries the modem once and stores the sample.
+     */
+    public void sample() {
+        int tRSSI = parseField(query("AT+CSQ"), "+CSQ:", 0, RSSI_UNKNOWN);
+        int tRegistration = parseField(query("AT+CREG?"), "+CREG:", 1, REG_UNKNOWN);
+        String tOperator = parseOperator(query("AT+COPS?"));
+        addSample(System.currentTimeMillis(), tRSSI, tRegistration, tOperator);
+    }
+
+    synchronized void addSample(long aTime, int aRSSI, int aRegistration, String aOperator) {
+        iSampleTimes[iSampleNext] = aTime;
+        iSampleRSSI[iSampleNext] = (byte) aRSSI;
+        iSampleRegistration[iSampleNext] = (byte) aRegistration;
+        iSampleNext = (iSampleNext + 1) % HISTORY_SIZE;
+        if (iSampleCount < HISTORY_SIZE) {
+            iSampleCount++;
+        }
+        if (aOperator != null) {
+            iOperator = aOperator;
+        }
+    }
+
+    /**
+     * A command sent at aSentTime (the network timestamp of the SMS) is
+     * being executed now. Returns why it was late if it is an outlier, null
+     * otherwise.
+     */
+    public synchronized String commandReceived(long aSentTime) {
+        if (aSentTime == SMS.NO_TIMESTAMP) {
+            return null;
+        }
+        long tNow = System.currentTimeMillis();
+        long tLatency = Math.max(0, tNow - aSentTime);
+        iCommands++;
+        String tCause = null;
+        if (tLatency > OUTLIER_MIN_LATENCY
+                && (iLatencyMean < 0 || tLatency > iLatencyMean + OUTLIER_DEVIATIONS * iLatencyDeviation)) {
+            iOutliers++;
+            tCause = explain(aSentTime, tNow);
+            System.out.println("NetworkMonitor: command late by " + tLatency / 1000 + "s: " + tCause);
+        }
+        //same smoothing as the TCP round trip estimator
+        if (iLatencyMean < 0) {
+            iLatencyMean = tLatency;
+            iLatencyDeviation = tLatency / 2.0;
+        } else {
+            iLatencyDeviation += (Math.abs(tLatency - iLatencyMean) - iLatencyDeviation) / 4;
+            iLatencyMean += (tLatency - iLatencyMean) / 8;
+        }
+        return tCause;
+    }
+
+    /**
+     * Looks at the samples from the last one before aFrom up to aTo.
+     */
+    private String explain(long aFrom, long aTo) {
+        int tMinRSSI = Integer.MAX_VALUE;
+        boolean tDeregistered = false;
+        int tSamples = 0;
+        for (int i = 1; i <= iSampleCount; i++) {
+            int tIndex = (iSampleNext - i + HISTORY_SIZE) % HISTORY_SIZE;
+            long tTime = iSampleTimes[tIndex];
+            if (tTime > aTo) {
+                continue;
+            }
+            int tRSSI = iSampleRSSI[tIndex];
+            if (tRSSI != RSSI_UNKNOWN && tRSSI < tMinRSSI) {
+                tMinRSSI = tRSSI;
+            }
+            if (!isRegistered(iSampleRegistration[tIndex])) {
+                tDeregistered = true;
+            }
+            tSamples++;
+            if (tTime <= aFrom) {
+                break;
+            }
+        }
+        if (tSamples == 0) {
+            return "no network samples";
+        }
+        if (tDeregistered) {
+            iOutliersDeregistered++;
+            return "not registered to the network meanwhile";
+        }
+        if (tMinRSSI < RSSI_WEAK) {
+            iOutliersWeakSignal++;
+            return "weak signal meanwhile (" + toDBm(tMinRSSI) + " dBm)";
+        }
+        return "network fine, operator or polling delay";
+    }
+
+    public synchronized int getSignal() {
+        return iSampleCount == 0 ? RSSI_UNKNOWN : iSampleRSSI[(iSampleNext - 1 + HISTORY_SIZE) % HISTORY_SIZE];
+    }
+
+    public synchronized int getRegistration() {
+        return iSampleCount == 0 ? REG_UNKNOWN : iSampleRegistration[(iSampleNext - 1 + HISTORY_SIZE) % HISTORY_SIZE];
+    }
+
+    public synchronized String getOperator() {
+        return iOperator;
+    }
+
+    public synchronized int getSampleCount() {
+        return iSampleCount;
+    }
+
+    public synchronized int getOutliers() {
+        return iOutliers;
+    }
+
+    /**
+     * Current values and latency outliers, for the status SMS.
+     */
+    public synchronized String getSummary() {
+        StringBuilder tSummary = new StringBuilder();
+        int tRSSI = getSignal();
+        tSummary.append("Signal: ").append(tRSSI == RSSI_UNKNOWN ? "unknown" : toDBm(tRSSI) + " dBm");
+        tSummary.append(", ").append(registrationName(getRegistration()));
+        if (iOperator.length() > 0) {
+            tSummary.append(", ").append(iOperator);
+        }
+        tSummary.append("\n");
+        if (iCommands > 0) {
+            tSummary.append("Latency: ").append(Math.round(iLatencyMean / 1000)).append("s avg");
+            tSummary.append(", late: ").append(iOutliers);
+            if (iOutliers > 0) {
+                tSummary.append(" (deregistered ").append(iOutliersDeregistered);
+                tSummary.append(", weak signal ").append(iOutliersWeakSignal).append(")");
+            }
+            tSummary.append("\n");
+        }
+        return tSummary.toString();
+    }
+
+    static int toDBm(int aRSSI) {
+        return -113 + 2 * aRSSI;
+    }
+
+    static boolean isRegistered(int aRegistration) {
+        return aRegistration == REG_HOME || aRegistration == REG_ROAMING;
+    }
+
+    static String registrationName(int aRegistration) {
+        switch (aRegistration) {
+            case REG_NOT_REGISTERED:
+                return "not registered";
+            case REG_HOME:
+                return "registered";
+            case REG_SEARCHING:
+                return "searching";
+            case REG_DENIED:
+                return "registration denied";
+            case REG_ROAMING:
+                return "roaming";
+            default:
+                return "registration unknown";
+        }
+    }
+
+    private String query(String aCommand) {
+        try {
+            ATResponse tResponse = iGateway.submit(new ATCommand(aCommand, ATCommand.DEFAULT_TIMEOUT, ATCommand.PRIORITY_LOW, true)).get();
+            return tResponse.isOK() ? tResponse.getRaw() : "";
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            System.out.println("NetworkMonitor: " + aCommand + " failed: " + ex.getCause());
+        }
+        return "";
+    }
+
+    /**
+     * The aField-th number after aPrefix, e.g. 15 in "+CSQ: 15,0" for field
+     * 0, or aDefault.
+     */
+    static int parseField(String aRaw, String aPrefix, int aField, int aDefault) {
+        int tStart = aRaw.indexOf(aPrefix);
+        if (tStart < 0) {
+            return aDefault;
+        }
+        int tValue = -1;
+        int tField = 0;
+        for (int i = tStart + aPrefix.length(); i < aRaw.length(); i++) {
+            char c = aRaw.charAt(i);
+            if (c >= '0' && c <= '9') {
+                tValue = (tValue < 0 ? 0 : tValue * 10) + (c - '0');
+            } else if (c == ',') {
+                if (tField == aField) {
+                    break;
+                }
+                tField++;
+                tValue = -1;
+            } else if (c == '\r' || c == '\n') {
+                break;
+            }
+        }
+        return tField == aField && tValue >= 0 ? tValue : aDefault;
+    }
+
+    /**
+     * The quoted operator of +COPS: 0,0,"Telia", null if not there.
+     */
+    static String parseOperator(String aRaw) {
+        int tStart = aRaw.indexOf("+COPS:");
+        if (tStart < 0) {
+            return null;
+        }
+        int tOpen = aRaw.indexOf('"', tStart);
+        int tClose = tOpen < 0 ? -1 : aRaw.indexOf('"', tOpen + 1);
+        return tClose < 0 ? "" : aRaw.substring(tOpen + 1, tClose);
+    }
+
+    private void whaitABit(long a) {
+        try {
+            Thread.sleep(a);
+        } catch (InterruptedException ex) {
+            //stop() wakes us up
+        }
+    }
+
+}
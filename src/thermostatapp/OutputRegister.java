@@ -0,0 +1,112 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import jdk.dio.gpio.GPIOPin;
+
+/**
+ * Shadow register of up to 32 output pins. set() only changes the desired
+ * bitmask; commit() writes the pins whose bit differs from what was last
+ * written, so a transition costs as many GPIO calls as pins it changes.
+ * Bits are logical (true = on); active low pins are inverted on write.
+ * Not thread safe: the Controller commits under its actuator lock.
+ *
+ * @author Ste
+ */
+class OutputRegister {
+
+    private static final int MAX_PINS = 32;
+
+    private final GPIOPin[] iPins = new GPIOPin[MAX_PINS];
+    private int iSize = 0;
+    private int iActiveLow = 0;
+    private int iShadow = 0;
+    private int iCommitted = 0;
+    //bits whose pin level is not known, written at the next commit
+    private int iUnknown = 0;
+    private long iWrites = 0;
+
+    /**
+     * Returns the bit of aPin. Its level is unknown until the first commit.
+     */
+    int add(GPIOPin aPin, boolean aActiveLow) {
+        if (iSize == MAX_PINS) {
+            throw new IllegalStateException("OutputRegister full");
+        }
+        int tBit = iSize++;
+        iPins[tBit] = aPin;
+        if (aActiveLow) {
+            iActiveLow |= 1 << tBit;
+        }
+        iUnknown |= 1 << tBit;
+        return tBit;
+    }
+
+    void set(int aBit, boolean aOn) {
+        if (aOn) {
+            iShadow |= 1 << aBit;
+        } else {
+            iShadow &= ~(1 << aBit);
+        }
+    }
+
+    boolean get(int aBit) {
+        return (iShadow & (1 << aBit)) != 0;
+    }
+
+    /**
+     * Writes the changed pins. Returns how many were written. If a write
+     * fails the pins written so far are committed and the others are
+     * retried at the next commit.
+     */
+    int commit() throws IOException {
+        int tDelta = (iShadow ^ iCommitted) | iUnknown;
+        int tWritten = 0;
+        while (tDelta != 0) {
+            int tBit = Integer.numberOfTrailingZeros(tDelta);
+            int tMask = 1 << tBit;
+            boolean tOn = (iShadow & tMask) != 0;
+            iPins[tBit].setValue(tOn != ((iActiveLow & tMask) != 0));
+            iCommitted = (iCommitted & ~tMask) | (iShadow & tMask);
+            iUnknown &= ~tMask;
+            tDelta &= ~tMask;
+            tWritten++;
+        }
+        iWrites += tWritten;
+        return tWritten;
+    }
+
+    /**
+     * Reads the pins back. Returns the mask of the bits whose pin is not at
+     * the committed level, 0 if all are; those are written again at the next
+     * commit.
+     */
+    int verify() throws IOException {
+        int tMismatch = 0;
+        for (int tBit = 0; tBit < iSize; tBit++) {
+            int tMask = 1 << tBit;
+            if ((iUnknown & tMask) != 0) {
+                continue;
+            }
+            boolean tOn = iPins[tBit].getValue() != ((iActiveLow & tMask) != 0);
+            if (tOn != ((iCommitted & tMask) != 0)) {
+                tMismatch |= tMask;
+            }
+        }
+        iUnknown |= tMismatch;
+        return tMismatch;
+    }
+
+    int getCommitted() {
+        return iCommitted;
+    }
+
+    long getWrites() {
+        return iWrites;
+    }
+
+}
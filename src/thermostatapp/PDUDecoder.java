@@ -0,0 +1,252 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Table driven decoder of SMS-DELIVER PDUs as listed by the modem in PDU mode
+ * (AT+CMGF=0). Works directly on the hex characters of the line and fills the
+ * SMS: service center, originator, SCTS timestamp (timezone included) and
+ * text in GSM 7 bit packed, 8 bit or UCS2. Not thread safe: the text buffer
+ * is reused.
+ *
+ * @author Ste
+ */
+public class PDUDecoder {
+
+    private static final int MAX_TEXT = 1024;
+
+    private static final byte[] HEX = new byte[128];
+
+    //GSM 03.38 default alphabet, 0x1B is the escape to the extension table
+    static final char[] GSM7 = ("@\u00a3$\u00a5\u00e8\u00e9\u00f9\u00ec\u00f2\u00c7\n\u00d8\u00f8\r\u00c5\u00e5"
+            + "\u0394_\u03a6\u0393\u039b\u03a9\u03a0\u03a8\u03a3\u0398\u039e\u001b\u00c6\u00e6\u00df\u00c9"
+            + " !\"#\u00a4%&'()*+,-./"
+            + "0123456789:;<=>?"
+            + "\u00a1ABCDEFGHIJKLMNO"
+            + "PQRSTUVWXYZ\u00c4\u00d6\u00d1\u00dc\u00a7"
+            + "\u00bfabcdefghijklmno"
+            + "pqrstuvwxyz\u00e4\u00f6\u00f1\u00fc\u00e0").toCharArray();
+
+    static final char[] GSM7_EXTENSION = new char[128];
+
+    //cumulative days before each month, non leap year
+    private static final int[] DAYS_BEFORE_MONTH = {0, 31, 59, 90, 120, 151, 181, 212, 243, 273, 304, 334};
+
+    private static final int ALPHABET_GSM7 = 0;
+    private static final int ALPHABET_8BIT = 1;
+    private static final int ALPHABET_UCS2 = 2;
+
+    static {
+        for (int i = 0; i < HEX.length; i++) {
+            HEX[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX['A' + i] = (byte) (10 + i);
+            HEX['a' + i] = (byte) (10 + i);
+        }
+        GSM7_EXTENSION[0x0A] = '\f';
+        GSM7_EXTENSION[0x14] = '^';
+        GSM7_EXTENSION[0x28] = '{';
+        GSM7_EXTENSION[0x29] = '}';
+        GSM7_EXTENSION[0x2F] = '\\';
+        GSM7_EXTENSION[0x3C] = '[';
+        GSM7_EXTENSION[0x3D] = '~';
+        GSM7_EXTENSION[0x3E] = ']';
+        GSM7_EXTENSION[0x40] = '|';
+        GSM7_EXTENSION[0x65] = '\u20ac';
+    }
+
+    private final char[] iText = new char[MAX_TEXT];
+    private byte[] iHex;
+    private int iOffset;
+    private int iOctets;
+
+    /**
+     * Decodes the PDU written as aLength hex characters starting at aOffset
+     * into aSMS. Returns false if it is not a well formed SMS-DELIVER.
+     */
+    public boolean decode(byte[] aHex, int aOffset, int aLength, SMS aSMS) {
+        iHex = aHex;
+        iOffset = aOffset;
+        iOctets = aLength / 2;
+        try {
+            int tPos = 0;
+            int tSMSCLength = octet(tPos++);
+            if (tSMSCLength > 0) {
+                aSMS.setServiceCenter(decodeNumber(tPos + 1, (tSMSCLength - 1) * 2, octet(tPos)));
+            }
+            tPos += tSMSCLength;
+            int tFirst = octet(tPos++);
+            if ((tFirst & 0x03) != 0) {
+                System.out.println("PDUDecoder: not an SMS-DELIVER: " + tFirst);
+                return false;
+            }
+            boolean tHeaderPresent = (tFirst & 0x40) != 0;
+            int tDigits = octet(tPos++);
+            int tTypeOfAddress = octet(tPos++);
+            if ((tTypeOfAddress & 0x70) == 0x50) {
+                aSMS.setSender(decodeGSM7(tPos, tDigits * 4 / 7, 0));
+            } else {
+                aSMS.setSender(decodeNumber(tPos, tDigits, tTypeOfAddress));
+            }
+            tPos += (tDigits + 1) / 2;
+            tPos++; //PID
+            int tAlphabet = alphabet(octet(tPos++));
+            aSMS.setTimestamp(decodeTimestamp(tPos));
+            tPos += 7;
+            int tDataLength = octet(tPos++);
+            int tHeaderLength = tHeaderPresent ? octet(tPos) + 1 : 0;
+            switch (tAlphabet) {
+                case ALPHABET_GSM7:
+                    //the user data header is padded to a septet boundary
+                    int tSkip = (tHeaderLength * 8 + 6) / 7;
+                    aSMS.setText(decodeGSM7(tPos, tDataLength, tSkip));
+                    break;
+                case ALPHABET_UCS2:
+                    aSMS.setText(decodeUCS2(tPos + tHeaderLength, tDataLength - tHeaderLength));
+                    break;
+                default:
+                    aSMS.setText(decode8Bit(tPos + tHeaderLength, tDataLength - tHeaderLength));
+            }
+            return true;
+        } catch (IndexOutOfBoundsException ex) {
+            System.out.println("PDUDecoder: truncated PDU");
+            return false;
+        } finally {
+            iHex = null;
+        }
+    }
+
+    private int octet(int aIndex) {
+        if (aIndex >= iOctets) {
+            throw new IndexOutOfBoundsException();
+        }
+        int tHigh = HEX[iHex[iOffset + aIndex * 2] & 0x7F];
+        int tLow = HEX[iHex[iOffset + aIndex * 2 + 1] & 0x7F];
+        if (tHigh < 0 || tLow < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        return (tHigh << 4) | tLow;
+    }
+
+    private static int alphabet(int aDCS) {
+        //00xx and 01xx (marked for automatic deletion) general data coding
+        if ((aDCS & 0x80) == 0) {
+            int tAlphabet = (aDCS >> 2) & 0x03;
+            return tAlphabet == 3 ? ALPHABET_GSM7 : tAlphabet;
+        }
+        if ((aDCS & 0xF0) == 0xF0) {
+            return (aDCS & 0x04) != 0 ? ALPHABET_8BIT : ALPHABET_GSM7;
+        }
+        if ((aDCS & 0xF0) == 0xE0) {
+            return ALPHABET_UCS2;
+        }
+        return ALPHABET_GSM7;
+    }
+
+    /**
+     * Semi-octets, low nibble first, padded with F.
+     */
+    private String decodeNumber(int aPos, int aDigits, int aTypeOfAddress) {
+        int n = 0;
+        if ((aTypeOfAddress & 0x70) == 0x10) {
+            iText[n++] = '+';
+        }
+        for (int i = 0; i < aDigits; i++) {
+            int tOctet = octet(aPos + i / 2);
+            int tDigit = (i & 1) == 0 ? tOctet & 0x0F : tOctet >> 4;
+            if (tDigit == 0x0F) {
+                break;
+            }
+            iText[n++] = tDigit < 10 ? (char) ('0' + tDigit) : "*#abc".charAt(tDigit - 10);
+        }
+        return new String(iText, 0, n);
+    }
+
+    private String decodeGSM7(int aPos, int aSeptets, int aSkip) {
+        int n = 0;
+        boolean tEscape = false;
+        for (int i = aSkip; i < aSeptets && n < MAX_TEXT; i++) {
+            int tBit = i * 7;
+            int tIndex = aPos + tBit / 8;
+            int tShift = tBit % 8;
+            int tValue = octet(tIndex) >> tShift;
+            if (tShift > 1) {
+                tValue |= octet(tIndex + 1) << (8 - tShift);
+            }
+            tValue &= 0x7F;
+            if (tEscape) {
+                char c = GSM7_EXTENSION[tValue];
+                iText[n++] = c != 0 ? c : GSM7[tValue];
+                tEscape = false;
+            } else if (tValue == 0x1B) {
+                tEscape = true;
+            } else {
+                iText[n++] = GSM7[tValue];
+            }
+        }
+        return new String(iText, 0, n);
+    }
+
+    private String decode8Bit(int aPos, int aOctets) {
+        int n = 0;
+        for (int i = 0; i < aOctets && n < MAX_TEXT; i++) {
+            iText[n++] = (char) octet(aPos + i);
+        }
+        return new String(iText, 0, n);
+    }
+
+    private String decodeUCS2(int aPos, int aOctets) {
+        int n = 0;
+        for (int i = 0; i + 1 < aOctets && n < MAX_TEXT; i += 2) {
+            iText[n++] = (char) ((octet(aPos + i) << 8) | octet(aPos + i + 1));
+        }
+        return new String(iText, 0, n);
+    }
+
+    private int swappedBCD(int aPos) {
+        int tOctet = octet(aPos);
+        return (tOctet & 0x0F) * 10 + (tOctet >> 4);
+    }
+
+    /**
+     * SCTS: yy MM dd hh mm ss and the timezone in quarters of an hour, bit 3
+     * of the last octet being the sign. Returns epoch millis.
+     */
+    private long decodeTimestamp(int aPos) {
+        int tYear = 2000 + swappedBCD(aPos);
+        int tMonth = swappedBCD(aPos + 1);
+        int tDay = swappedBCD(aPos + 2);
+        int tHour = swappedBCD(aPos + 3);
+        int tMinute = swappedBCD(aPos + 4);
+        int tSecond = swappedBCD(aPos + 5);
+        int tZoneOctet = octet(aPos + 6);
+        int tQuarters = (tZoneOctet & 0x07) * 10 + (tZoneOctet >> 4);
+        if ((tZoneOctet & 0x08) != 0) {
+            tQuarters = -tQuarters;
+        }
+        long tDays = daysSinceEpoch(tYear, tMonth, tDay);
+        long tSeconds = tDays * 86400L + tHour * 3600 + tMinute * 60 + tSecond;
+        return (tSeconds - tQuarters * 15 * 60L) * 1000L;
+    }
+
+    static long daysSinceEpoch(int aYear, int aMonth, int aDay) {
+        int tYearsBefore = aYear - 1;
+        long tDays = 365L * (aYear - 1970)
+                + (tYearsBefore / 4 - tYearsBefore / 100 + tYearsBefore / 400)
+                - (1969 / 4 - 1969 / 100 + 1969 / 400);
+        tDays += DAYS_BEFORE_MONTH[aMonth - 1] + aDay - 1;
+        boolean tLeap = (aYear % 4 == 0 && aYear % 100 != 0) || aYear % 400 == 0;
+        if (tLeap && aMonth > 2) {
+            tDays++;
+        }
+        return tDays;
+    }
+
+}
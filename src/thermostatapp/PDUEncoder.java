@@ -0,0 +1,273 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Encodes an SMS-SUBMIT PDU for AT+CMGS in PDU mode: GSM 7 bit packed when
+ * every char is in the default alphabet or its extension, UCS2 otherwise.
+ * A text longer than one message is split() into the parts of a
+ * concatenated SMS, each sent with a user data header (IEI 0x00, 8 bit
+ * reference, part count, part number); beyond MAX_PARTS it is truncated.
+ * Not thread safe.
+ *
+ * @author Ste
+ */
+public class PDUEncoder {
+
+    public static final int MAX_GSM7 = 160;
+    public static final int MAX_UCS2 = 70;
+    //what is left next to the 6 octet header of a concatenated part
+    public static final int MAX_GSM7_PART = 153;
+    public static final int MAX_UCS2_PART = 67;
+    public static final int MAX_PARTS = 4;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final StringBuilder iPDU = new StringBuilder(400);
+    private final int[] iSeptets = new int[MAX_GSM7];
+    private int iTPDULength;
+
+    /**
+     * Returns the PDU in hex, default service center included. The length to
+     * give to AT+CMGS is then getTPDULength().
+     */
+    public String encodeSubmit(String aRecipient, String aText) {
+        return encodeSubmit(aRecipient, aText, 0, 1, 1);
+    }
+
+    /**
+     * Part aPart (from 1) of aParts of a concatenated SMS with reference
+     * aReference, aText being that part as returned by split(). A single
+     * part is sent without header.
+     */
+    public String encodeSubmit(String aRecipient, String aText, int aReference, int aPart, int aParts) {
+        iPDU.setLength(0);
+        appendOctet(0x00); //service center from the SIM
+        appendOctet(aParts > 1 ? 0x41 : 0x01); //SMS-SUBMIT, no validity period, UDHI if concatenated
+        appendOctet(0x00); //message reference set by the modem
+        appendAddress(aRecipient);
+        appendOctet(0x00); //PID
+        if (aParts > 1) {
+            appendUserData(aText, -1, new int[]{0x05, 0x00, 0x03, aReference & 0xFF, aParts, aPart});
+        } else {
+            appendUserData(aText, -1, null);
+        }
+        iTPDULength = iPDU.length() / 2 - 1;
+        return iPDU.toString();
+    }
+
+    /**
+     * The texts of the parts aText is sent in: itself if it fits one
+     * message, otherwise pieces of at most MAX_GSM7_PART septets (or
+     * MAX_UCS2_PART chars) that do not cut an escape sequence or a surrogate
+     * pair. What does not fit MAX_PARTS is dropped, and logged.
+     */
+    public static List<String> split(String aText) {
+        boolean tGSM7 = septetLength(aText, 0, aText.length()) >= 0;
+        if (tGSM7 ? septetLength(aText, 0, aText.length()) <= MAX_GSM7 : aText.length() <= MAX_UCS2) {
+            return Collections.singletonList(aText);
+        }
+        List<String> tParts = new ArrayList<String>(MAX_PARTS);
+        int tStart = 0;
+        while (tStart < aText.length() && tParts.size() < MAX_PARTS) {
+            int tEnd = tStart;
+            int tUnits = 0;
+            while (tEnd < aText.length()) {
+                int tSize = tGSM7 ? septetLength(aText, tEnd, tEnd + 1) : 1;
+                if (tUnits + tSize > (tGSM7 ? MAX_GSM7_PART : MAX_UCS2_PART)) {
+                    break;
+                }
+                tUnits += tSize;
+                tEnd++;
+            }
+            if (!tGSM7 && tEnd < aText.length() && Character.isHighSurrogate(aText.charAt(tEnd - 1))) {
+                tEnd--;
+            }
+            tParts.add(aText.substring(tStart, tEnd));
+            tStart = tEnd;
+        }
+        if (tStart < aText.length()) {
+            System.out.println("PDUEncoder: " + (aText.length() - tStart) + " chars beyond " + MAX_PARTS + " parts dropped");
+        }
+        return tParts;
+    }
+
+    /**
+     * Encodes an SMS-DELIVER from aSender as a modem would list it, SCTS in
+     * UTC. Used by the GSMModemSimulator.
+     */
+    String encodeDeliver(String aSender, String aText, long aTimestamp) {
+        iPDU.setLength(0);
+        appendOctet(0x00); //no service center
+        appendOctet(0x04); //SMS-DELIVER, no more messages
+        appendAddress(aSender);
+        appendOctet(0x00); //PID
+        appendUserData(aText, aTimestamp, null);
+        iTPDULength = iPDU.length() / 2 - 1;
+        return iPDU.toString();
+    }
+
+    /**
+     * Octets after the service center, as AT+CMGS=<length> wants them.
+     */
+    public int getTPDULength() {
+        return iTPDULength;
+    }
+
+    private void appendAddress(String aNumber) {
+        boolean tInternational = aNumber.startsWith("+");
+        int tStart = tInternational ? 1 : 0;
+        int tDigits = aNumber.length() - tStart;
+        appendOctet(tDigits);
+        appendOctet(tInternational ? 0x91 : 0x81);
+        for (int i = 0; i < tDigits; i += 2) {
+            int tLow = aNumber.charAt(tStart + i) - '0';
+            int tHigh = i + 1 < tDigits ? aNumber.charAt(tStart + i + 1) - '0' : 0x0F;
+            appendOctet((tHigh << 4) | tLow);
+        }
+    }
+
+    /**
+     * DCS, the SCTS if aTimestamp is not negative, UDL and UD, the UD
+     * starting with aHeader if not null.
+     */
+    private void appendUserData(String aText, long aTimestamp, int[] aHeader) {
+        int tSeptets = toSeptets(aText);
+        appendOctet(tSeptets >= 0 ? 0x00 : 0x08);
+        if (aTimestamp >= 0) {
+            appendTimestamp(aTimestamp);
+        }
+        int tHeaderOctets = aHeader == null ? 0 : aHeader.length;
+        if (tSeptets >= 0) {
+            //the septets start on a septet boundary after the header
+            int tHeaderSeptets = (tHeaderOctets * 8 + 6) / 7;
+            appendOctet(tHeaderSeptets + tSeptets);
+            for (int i = 0; i < tHeaderOctets; i++) {
+                appendOctet(aHeader[i]);
+            }
+            int tAccumulator = 0;
+            int tBits = tHeaderSeptets * 7 - tHeaderOctets * 8;
+            for (int i = 0; i < tSeptets; i++) {
+                tAccumulator |= iSeptets[i] << tBits;
+                tBits += 7;
+                while (tBits >= 8) {
+                    appendOctet(tAccumulator & 0xFF);
+                    tAccumulator >>>= 8;
+                    tBits -= 8;
+                }
+            }
+            if (tBits > 0) {
+                appendOctet(tAccumulator & 0xFF);
+            }
+        } else {
+            int tChars = Math.min(aText.length(), MAX_UCS2 - (tHeaderOctets + 1) / 2);
+            appendOctet(tHeaderOctets + tChars * 2);
+            for (int i = 0; i < tHeaderOctets; i++) {
+                appendOctet(aHeader[i]);
+            }
+            for (int i = 0; i < tChars; i++) {
+                char c = aText.charAt(i);
+                appendOctet(c >> 8);
+                appendOctet(c & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Swapped semi-octets yy MM dd hh mm ss, timezone +00.
+     */
+    private void appendTimestamp(long aTimestamp) {
+        long tSeconds = Math.floorDiv(aTimestamp, 1000L);
+        long tDays = Math.floorDiv(tSeconds, 86400L);
+        int tSecondOfDay = (int) (tSeconds - tDays * 86400L);
+        //civil from days, proleptic gregorian
+        long z = tDays + 719468;
+        long tEra = Math.floorDiv(z, 146097);
+        long tDayOfEra = z - tEra * 146097;
+        long tYearOfEra = (tDayOfEra - tDayOfEra / 1460 + tDayOfEra / 36524 - tDayOfEra / 146096) / 365;
+        long tDayOfYear = tDayOfEra - (365 * tYearOfEra + tYearOfEra / 4 - tYearOfEra / 100);
+        long tMonthPrime = (5 * tDayOfYear + 2) / 153;
+        int tDay = (int) (tDayOfYear - (153 * tMonthPrime + 2) / 5 + 1);
+        int tMonth = (int) (tMonthPrime < 10 ? tMonthPrime + 3 : tMonthPrime - 9);
+        int tYear = (int) (tYearOfEra + tEra * 400 + (tMonth <= 2 ? 1 : 0));
+        appendSwapped(tYear % 100);
+        appendSwapped(tMonth);
+        appendSwapped(tDay);
+        appendSwapped(tSecondOfDay / 3600);
+        appendSwapped(tSecondOfDay / 60 % 60);
+        appendSwapped(tSecondOfDay % 60);
+        appendOctet(0x00);
+    }
+
+    private void appendSwapped(int aValue) {
+        appendOctet(((aValue % 10) << 4) | (aValue / 10));
+    }
+
+    /**
+     * Fills iSeptets, returns how many or -1 if a char has no GSM 7 bit code.
+     */
+    private int toSeptets(String aText) {
+        int n = 0;
+        for (int i = 0; i < aText.length(); i++) {
+            char c = aText.charAt(i);
+            int tCode = indexOf(PDUDecoder.GSM7, c);
+            if (tCode >= 0 && tCode != 0x1B) {
+                if (n + 1 > MAX_GSM7) {
+                    break;
+                }
+                iSeptets[n++] = tCode;
+                continue;
+            }
+            tCode = indexOf(PDUDecoder.GSM7_EXTENSION, c);
+            if (tCode < 0 || c == 0) {
+                return -1;
+            }
+            if (n + 2 > MAX_GSM7) {
+                break;
+            }
+            iSeptets[n++] = 0x1B;
+            iSeptets[n++] = tCode;
+        }
+        return n;
+    }
+
+    /**
+     * Septets of aText[aStart, aEnd), -1 if a char has no GSM 7 bit code.
+     */
+    private static int septetLength(String aText, int aStart, int aEnd) {
+        int n = 0;
+        for (int i = aStart; i < aEnd; i++) {
+            char c = aText.charAt(i);
+            int tCode = indexOf(PDUDecoder.GSM7, c);
+            if (tCode >= 0 && tCode != 0x1B) {
+                n++;
+            } else if (c != 0 && indexOf(PDUDecoder.GSM7_EXTENSION, c) >= 0) {
+                n += 2;
+            } else {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+    private static int indexOf(char[] aTable, char c) {
+        for (int i = 0; i < aTable.length; i++) {
+            if (aTable[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void appendOctet(int aOctet) {
+        iPDU.append(HEX_DIGITS[(aOctet >> 4) & 0x0F]).append(HEX_DIGITS[aOctet & 0x0F]);
+    }
+
+}
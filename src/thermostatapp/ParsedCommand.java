@@ -0,0 +1,218 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.Locale;
+
+/**
+ * What the Interpreter made of an SMS: the Command and its arguments, or the
+ * Error and the word it was found at. Reused from one parse to the next, so
+ * the arguments are kept as numbers and offsets into the text; the Strings
+ * are only made when asked for.
+ *
+ * @author Ste
+ */
+public class ParsedCommand {
+
+    public enum Error {
+
+        NONE("ok"),
+        EMPTY("Empty message"),
+        UNKNOWN_COMMAND("Unknown command"),
+        MISSING_ARGUMENT("Missing argument"),
+        TOO_MANY_ARGUMENTS("Unexpected"),
+        BAD_TIME("Bad time, use hh:mm"),
+        BAD_DAYS("Bad day, use mon..sun, weekdays, weekend or daily"),
+        BAD_MODE("Bad mode, use on, off, manual or auto"),
+        BAD_TEMPERATURE("Bad temperature, use 5..30"),
+        BAD_PHONE_NUMBER("Bad phone number, use +<country><number>");
+
+        final String iMessage;
+
+        Error(String aMessage) {
+            iMessage = aMessage;
+        }
+    }
+
+    private CharSequence iText;
+    private Command iCommand = Command.NOT_VALID;
+    private Error iError = Error.NONE;
+    //the word iError was found at, -1 at the end of the text
+    private int iErrorStart;
+    private int iErrorEnd;
+
+    //arguments, set by the commands that take them
+    private int iDays;
+    private int iMinute;
+    private Status iMode;
+    private double iTarget;
+    private int iPhoneStart;
+    private int iPhoneEnd;
+
+    //the word being read, used by the Interpreter
+    int iWordStart;
+    int iWordEnd;
+
+    void reset(CharSequence aText) {
+        iText = aText;
+        iCommand = Command.NOT_VALID;
+        iError = Error.NONE;
+        iErrorStart = -1;
+        iErrorEnd = -1;
+        iDays = WeeklyProgram.DAILY;
+        iMinute = -1;
+        iMode = null;
+        iTarget = Double.NaN;
+        iPhoneStart = 0;
+        iPhoneEnd = 0;
+        iWordStart = 0;
+        iWordEnd = 0;
+    }
+
+    /**
+     * Moves to the next word of the text, false at the end.
+     */
+    boolean nextWord() {
+        int tLength = iText.length();
+        int i = iWordEnd;
+        while (i < tLength && Character.isWhitespace(iText.charAt(i))) {
+            i++;
+        }
+        iWordStart = i;
+        while (i < tLength && !Character.isWhitespace(iText.charAt(i))) {
+            i++;
+        }
+        iWordEnd = i;
+        return iWordStart < iWordEnd;
+    }
+
+    /**
+     * Fails at the current word, or at the end of the text if there is none.
+     * Returns false for the Interpreter to return.
+     */
+    boolean fail(Error aError) {
+        iCommand = Command.NOT_VALID;
+        iError = aError;
+        iErrorStart = iWordStart < iWordEnd ? iWordStart : -1;
+        iErrorEnd = iWordEnd;
+        return false;
+    }
+
+    void setCommand(Command aCommand) {
+        iCommand = aCommand;
+    }
+
+    void setDays(int aDays) {
+        iDays = aDays;
+    }
+
+    void setMinute(int aMinute) {
+        iMinute = aMinute;
+    }
+
+    void setMode(Status aMode) {
+        iMode = aMode;
+    }
+
+    void setTarget(double aTarget) {
+        iTarget = aTarget;
+    }
+
+    void setPhoneNumber(int aStart, int aEnd) {
+        iPhoneStart = aStart;
+        iPhoneEnd = aEnd;
+    }
+
+    public Command getCommand() {
+        return iCommand;
+    }
+
+    public boolean isValid() {
+        return iError == Error.NONE;
+    }
+
+    public Error getError() {
+        return iError;
+    }
+
+    /**
+     * The error and the word it is about, for the reply to the sender.
+     */
+    public String getErrorMessage() {
+        if (iError == Error.NONE) {
+            return null;
+        }
+        if (iErrorStart < 0) {
+            return iError.iMessage;
+        }
+        return iError.iMessage + ": \"" + iText.subSequence(iErrorStart, iErrorEnd) + "\"";
+    }
+
+    /**
+     * Days of PROGRAM_WEEK, WeeklyProgram.DAILY for PROGRAM_HOUR.
+     */
+    public int getDays() {
+        return iDays;
+    }
+
+    /**
+     * Minute of the day of the PROGRAM variants, -1 if none.
+     */
+    public int getMinute() {
+        return iMinute;
+    }
+
+    public Status getMode() {
+        return iMode;
+    }
+
+    /**
+     * Target of AUTO, NaN if not given.
+     */
+    public double getTarget() {
+        return iTarget;
+    }
+
+    /**
+     * Number of REGISTER_NUMBER, null if none.
+     */
+    public String getPhoneNumber() {
+        return iPhoneEnd > iPhoneStart ? iText.subSequence(iPhoneStart, iPhoneEnd).toString() : null;
+    }
+
+    /**
+     * The program entry of PROGRAM_HOUR and PROGRAM_WEEK, null otherwise.
+     */
+    public WeeklyProgram.Entry getEntry() {
+        if (iCommand != Command.PROGRAM_HOUR && iCommand != Command.PROGRAM_WEEK) {
+            return null;
+        }
+        return new WeeklyProgram.Entry(iDays, iMinute, iMode, iTarget);
+    }
+
+    @Override
+    public String toString() {
+        if (iError != Error.NONE) {
+            return iCommand + " " + getErrorMessage();
+        }
+        StringBuilder tText = new StringBuilder(iCommand.toString());
+        if (iMinute >= 0) {
+            tText.append(' ').append(WeeklyProgram.dayName(iDays));
+            tText.append(String.format(Locale.ROOT, " %02d:%02d", iMinute / 60, iMinute % 60));
+        }
+        if (iMode != null) {
+            tText.append(' ').append(iMode);
+        }
+        if (!Double.isNaN(iTarget)) {
+            tText.append(' ').append(iTarget);
+        }
+        if (iPhoneEnd > iPhoneStart) {
+            tText.append(' ').append(iText, iPhoneStart, iPhoneEnd);
+        }
+        return tText.toString();
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import com.pi4j.io.serial.Serial;
+import com.pi4j.io.serial.SerialDataEvent;
+import com.pi4j.io.serial.SerialDataListener;
+import com.pi4j.io.serial.SerialPortException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * SerialTransport over a pi4j Serial (or the GSMModemSimulator). The data
+ * comes in through a SerialDataListener, is kept in an inbound buffer and
+ * read() takes it from there, waiting on a lock: nothing here polls.
+ *
+ * pi4j has no interrupt driven notification: its own monitor thread checks
+ * availableBytes() every getMonitorInterval() ms (100 by default) and hands
+ * over what it read. That interval is the latency of a reply and the cost
+ * of an idle line, 10 native calls a second.
+ *
+ * @author Ste
+ */
+public class Pi4JSerialTransport implements SerialTransport {
+
+    private static final int INBOUND_SIZE = 16384;
+    //re-checks that the port is still open while waiting for room
+    private static final long INBOUND_WAIT = 1000;
+
+    private final Serial iSerial;
+    private final String iPort;
+    private final Object iLock = new Object();
+    //kept in write mode, guarded by iLock
+    private final ByteBuffer iInbound = ByteBuffer.allocate(INBOUND_SIZE);
+    private volatile SerialReadListener iListener;
+
+    public Pi4JSerialTransport(Serial aSerial, String aPort) {
+        iSerial = aSerial;
+        iPort = aPort;
+        iSerial.addListener(new SerialDataListener() {
+            @Override
+            public void dataReceived(SerialDataEvent aEvent) {
+                received(aEvent.getData());
+            }
+        });
+    }
+
+    @Override
+    public synchronized void open(int aBaudRate) throws IOException {
+        if (iSerial.isOpen()) {
+            iSerial.close();
+        }
+        synchronized (iLock) {
+            iInbound.clear();
+        }
+        try {
+            iSerial.open(iPort, aBaudRate);
+        } catch (SerialPortException ex) {
+            throw new IOException("Cannot open " + iPort + " at " + aBaudRate, ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (iSerial.isOpen()) {
+            iSerial.close();
+        }
+        synchronized (iLock) {
+            iInbound.clear();
+            iLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return iSerial.isOpen();
+    }
+
+    @Override
+    public int read(ByteBuffer aBuffer) throws IOException {
+        return read(aBuffer, 0);
+    }
+
+    @Override
+    public int read(ByteBuffer aBuffer, long aTimeout) throws IOException {
+        long tDeadline = System.currentTimeMillis() + aTimeout;
+        synchronized (iLock) {
+            while (iInbound.position() == 0) {
+                if (!iSerial.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                long tWait = tDeadline - System.currentTimeMillis();
+                if (tWait <= 0) {
+                    return 0;
+                }
+                try {
+                    iLock.wait(tWait);
+                } catch (InterruptedException ex) {
+                    return 0;
+                }
+            }
+            iInbound.flip();
+            int n = Math.min(iInbound.remaining(), aBuffer.remaining());
+            int tLimit = iInbound.limit();
+            iInbound.limit(iInbound.position() + n);
+            aBuffer.put(iInbound);
+            iInbound.limit(tLimit);
+            iInbound.compact();
+            //the monitor thread may be waiting for room
+            iLock.notifyAll();
+            return n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer aBuffer) throws IOException {
+        int n = aBuffer.remaining();
+        byte[] tBytes = new byte[n];
+        aBuffer.get(tBytes);
+        try {
+            iSerial.write(tBytes);
+        } catch (IllegalStateException ex) {
+            throw new IOException(ex);
+        }
+        return n;
+    }
+
+    @Override
+    public void setReadListener(SerialReadListener aListener) {
+        iListener = aListener;
+    }
+
+    /**
+     * Called on the pi4j monitor thread with what it read. If nobody is
+     * reading, it waits for room instead of dropping bytes: the port keeps
+     * the rest meanwhile.
+     */
+    private void received(String aData) {
+        synchronized (iLock) {
+            for (int i = 0; i < aData.length(); i++) {
+                while (!iInbound.hasRemaining()) {
+                    if (!iSerial.isOpen()) {
+                        return;
+                    }
+                    iLock.notifyAll();
+                    try {
+                        iLock.wait(INBOUND_WAIT);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                iInbound.put((byte) aData.charAt(i));
+            }
+            iLock.notifyAll();
+        }
+        SerialReadListener tListener = iListener;
+        if (tListener != null) {
+            tListener.dataAvailable(this);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU set of the messages already handled, executed or discarded.
+ * A message is identified by sender, modem timestamp, position and a hash of
+ * the text, so a stale SMS still on the SIM is never executed twice.
+ *
+ * @author Ste
+ */
+public class ProcessedSMSCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final LinkedHashMap<Long, Boolean> iSeen;
+
+    public ProcessedSMSCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ProcessedSMSCache(final int aCapacity) {
+        iSeen = new LinkedHashMap<Long, Boolean>(aCapacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> aEldest) {
+                return size() > aCapacity;
+            }
+        };
+    }
+
+    public synchronized boolean isProcessed(SMS aSMS) {
+        return iSeen.get(fingerprint(aSMS)) != null;
+    }
+
+    /**
+     * Returns true if aSMS was not handled yet, and marks it as handled.
+     */
+    public synchronized boolean markProcessed(SMS aSMS) {
+        return iSeen.put(fingerprint(aSMS), Boolean.TRUE) == null;
+    }
+
+    public synchronized int size() {
+        return iSeen.size();
+    }
+
+    static long fingerprint(SMS aSMS) {
+        long h = aSMS.getSender() == null ? 0 : aSMS.getSender().hashCode();
+        h = h * 1000003L + aSMS.getTimestamp();
+        h = h * 1000003L + aSMS.getPosition();
+        h = h * 1000003L + aSMS.getText().hashCode();
+        return h;
+    }
+
+}
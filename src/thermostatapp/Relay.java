@@ -30,6 +30,14 @@ public class Relay {
         iRelay.setValue(iInitialStatus);
     }
     
+    /**
+     * Drives an already opened pin, e.g. a fake one in benchmarks.
+     */
+    Relay(GPIOPin aPin) throws IOException{
+        iRelay = aPin;
+        iRelay.setValue(iInitialStatus);
+    }
+    
     public void turnOn() throws IOException{
         iRelay.setValue(false);
     }
@@ -43,6 +51,10 @@ public class Relay {
         iRelay.setValue(aValue);
     }
     
+    GPIOPin getPin(){
+        return iRelay;
+    }
+    
     public boolean getValue() throws IOException{
         return iRelay.getValue();
     }
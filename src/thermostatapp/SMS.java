@@ -5,24 +5,41 @@
  */
 package thermostatapp;
 
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.StringTokenizer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
+ * A received message. The modem timestamp is kept as epoch millis, timezone
+ * included, and the sender is a canonical String shared by all the messages
+ * of the same number. Headers are read by a single pass scanner: no regex,
+ * no SimpleDateFormat, no Date.
  *
  * @author Ste
  */
-public class SMS implements Comparable{
+public class SMS implements Comparable<SMS>{
+
+    public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+    private static final long VALIDITY_WINDOW = 3 * 60 * 60 * 1000L;
+
+    private static final ThreadLocal<SimpleDateFormat> FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyyMMdd HH:mm");
+        }
+    };
+
+    //canonical senders, most messages come from a handful of numbers
+    private static final String[] SENDERS = new String[32];
+    private static int sSenderCount = 0;
+    private static int sSenderNext = 0;
 
     private int iPosition;
     private String iHeader;
     private String iText;
     private String iSender;
-    private Date iDate;
+    private long iTimestamp = NO_TIMESTAMP;
+    private String iServiceCenter;
     
     
     
@@ -59,78 +76,191 @@ public class SMS implements Comparable{
     }
 
     public void setSender(String aSender) {
-        this.iSender = aSender;
+        this.iSender = aSender == null ? null : canonicalSender(aSender, 0, aSender.length());
+    }
+
+    /**
+     * Epoch millis of the modem timestamp, NO_TIMESTAMP if unknown.
+     */
+    public long getTimestamp() {
+        return iTimestamp;
+    }
+
+    public void setTimestamp(long aTimestamp) {
+        this.iTimestamp = aTimestamp;
     }
 
     public Date getDate() {
-        return iDate;
+        return iTimestamp == NO_TIMESTAMP ? null : new Date(iTimestamp);
     }
 
     public void setDate(Date aDate) {
-        this.iDate = aDate;
+        this.iTimestamp = aDate == null ? NO_TIMESTAMP : aDate.getTime();
+    }
+
+    public String getServiceCenter() {
+        return iServiceCenter;
+    }
+
+    public void setServiceCenter(String aServiceCenter) {
+        this.iServiceCenter = aServiceCenter;
     }
 
     public String toString() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd HH:mm");
-        return "[SMS]: " + iPosition + " [Sender]: " + iSender + " [Date]: " + sdf.format(iDate) + " [Text]: " + iText;
+        return "[SMS]: " + iPosition + " [Sender]: " + iSender + " [Date]: "
+                + (iTimestamp == NO_TIMESTAMP ? "null" : FORMAT.get().format(new Date(iTimestamp))) + " [Text]: " + iText;
     }
 
-    void parseHeaderAndSetData(String s) {
+    void parseHeaderAndSetData(CharSequence s) {
        /*
         * +CMGL: 4,"REC READ","+46700447531","","15/05/02,18:01:34+08"
         * Set: Position, Date, Sender
         */
-        StringTokenizer st = new StringTokenizer(s, ",");
-            String tToken = st.nextToken();
-            iPosition = parsePosition(tToken);
-            tToken = st.nextToken();
-            //iStatus = parseStatus();
-            tToken = st.nextToken();
-            iSender = parseSender(tToken);
-            tToken = st.nextToken();
-            //blank
-            tToken = st.nextToken();
-            tToken = tToken+" "+st.nextToken();
-            iDate = parseDate(tToken);
+        scanHeader(s, true);
     }
-    
-    private int parsePosition(String aPosition){
-        int tPos = 0;
-        //System.out.println("ParsePosition: "+aPosition);
-        tPos = Integer.parseInt(aPosition.substring(aPosition.length()-2).trim());
-        //System.out.println("Parsed position: "+tPos);
-        return tPos;
+
+    void parseReadHeaderAndSetData(CharSequence s, int aPosition) {
+       /*
+        * +CMGR: "REC UNREAD","+46700447531","","15/05/02,18:01:34+08"
+        * The position is not in the header: it is the one that was read.
+        */
+        iPosition = aPosition;
+        scanHeader(s, false);
     }
-    
-    private String parseSender(String aSender){
-        String tSender = "";
-        //System.out.println("ParseSender: "+aSender);
-        tSender = aSender.replaceAll("\"", "").trim();
-        //System.out.println("Parsed Sender: "+tSender);
-        return tSender;
-    }
-
-    private Date parseDate(String aDate){
-        //"15/05/26 22:59:28+08"
-        Date tDate = new Date();
-        //System.out.println("ParseDate: "+aDate);
-        aDate = aDate.replaceAll("\"", "");
-        aDate = aDate.substring(0,14);
-        SimpleDateFormat formatter = new SimpleDateFormat("yy/MM/dd HH:mm");
-        try {
-            tDate = formatter.parse(aDate);
-        } catch (ParseException ex) {
-            ex.printStackTrace();
+
+    /**
+     * One pass over the header: fields are comma separated, commas inside
+     * quotes (the timestamp) do not count.
+     */
+    private void scanHeader(CharSequence s, boolean aIndexed) {
+        int tLength = s.length();
+        int i = 0;
+        while (i < tLength && s.charAt(i) != ':') {
+            i++;
+        }
+        i++;
+        int tField = aIndexed ? 0 : 1;
+        while (i < tLength) {
+            while (i < tLength && s.charAt(i) == ' ') {
+                i++;
+            }
+            int tStart = i;
+            boolean tQuoted = i < tLength && s.charAt(i) == '"';
+            if (tQuoted) {
+                tStart = ++i;
+                while (i < tLength && s.charAt(i) != '"') {
+                    i++;
+                }
+            } else {
+                while (i < tLength && s.charAt(i) != ',') {
+                    i++;
+                }
+            }
+            int tEnd = i;
+            switch (tField) {
+                case 0:
+                    iPosition = parseNumber(s, tStart, tEnd);
+                    break;
+                case 2:
+                    iSender = tEnd > tStart ? canonicalSender(s, tStart, tEnd) : null;
+                    break;
+                case 4:
+                    iTimestamp = parseTimestamp(s, tStart, tEnd);
+                    break;
+                default:
+                    //status, alpha
+            }
+            if (tQuoted) {
+                i++;
+            }
+            //skip to the next field
+            while (i < tLength && s.charAt(i) != ',') {
+                i++;
+            }
+            i++;
+            tField++;
+        }
+        if (tField <= 4) {
+            throw new IllegalArgumentException("SMS header too short: " + s);
+        }
+    }
+
+    private static int parseNumber(CharSequence s, int aStart, int aEnd) {
+        int tValue = 0;
+        for (int i = aStart; i < aEnd; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Not a number: " + s.subSequence(aStart, aEnd));
+            }
+            tValue = tValue * 10 + (c - '0');
+        }
+        return tValue;
+    }
+
+    /**
+     * yy/MM/dd,hh:mm:ss+zz with zz in quarters of an hour. Returns epoch
+     * millis.
+     */
+    static long parseTimestamp(CharSequence s, int aStart, int aEnd) {
+        if (aEnd - aStart < 17) {
+            throw new IllegalArgumentException("Not a timestamp: " + s.subSequence(aStart, aEnd));
+        }
+        int tYear = 2000 + parseNumber(s, aStart, aStart + 2);
+        int tMonth = parseNumber(s, aStart + 3, aStart + 5);
+        int tDay = parseNumber(s, aStart + 6, aStart + 8);
+        int tHour = parseNumber(s, aStart + 9, aStart + 11);
+        int tMinute = parseNumber(s, aStart + 12, aStart + 14);
+        int tSecond = parseNumber(s, aStart + 15, aStart + 17);
+        int tQuarters = 0;
+        if (aEnd - aStart > 18) {
+            tQuarters = parseNumber(s, aStart + 18, aEnd);
+            if (s.charAt(aStart + 17) == '-') {
+                tQuarters = -tQuarters;
+            }
+        }
+        if (tMonth < 1 || tMonth > 12) {
+            throw new IllegalArgumentException("Not a timestamp: " + s.subSequence(aStart, aEnd));
+        }
+        long tSeconds = PDUDecoder.daysSinceEpoch(tYear, tMonth, tDay) * 86400L + tHour * 3600 + tMinute * 60 + tSecond;
+        return (tSeconds - tQuarters * 15 * 60L) * 1000L;
+    }
+
+    /**
+     * Returns the known String equal to s[aStart, aEnd), creating it only for
+     * a sender not seen recently.
+     */
+    static String canonicalSender(CharSequence s, int aStart, int aEnd) {
+        synchronized (SENDERS) {
+            for (int i = 0; i < sSenderCount; i++) {
+                if (regionEquals(SENDERS[i], s, aStart, aEnd)) {
+                    return SENDERS[i];
+                }
+            }
+            String tSender = s.subSequence(aStart, aEnd).toString();
+            SENDERS[sSenderNext] = tSender;
+            sSenderNext = (sSenderNext + 1) % SENDERS.length;
+            if (sSenderCount < SENDERS.length) {
+                sSenderCount++;
+            }
+            return tSender;
+        }
+    }
+
+    private static boolean regionEquals(String aString, CharSequence s, int aStart, int aEnd) {
+        if (aString.length() != aEnd - aStart) {
+            return false;
+        }
+        for (int i = aStart; i < aEnd; i++) {
+            if (aString.charAt(i - aStart) != s.charAt(i)) {
+                return false;
+            }
         }
-        //System.out.println("Parsed date: "+tDate);
-        return tDate;
+        return true;
     }
 
     @Override
-    public int compareTo(Object o) {
-        if (o instanceof SMS) return 0;
-        Date tDateObj = ((SMS)o).getDate();
-        return iDate.compareTo(tDateObj);
+    public int compareTo(SMS o) {
+        return Long.compare(iTimestamp, o.iTimestamp);
     }
 
     boolean senderAuthorized() {
@@ -138,7 +268,7 @@ public class SMS implements Comparable{
             System.out.println("Sender unauthorized: missing!");
             return false;
         }
-        if (AuthorizedUsers.getAllUsers().contains(iSender)) {
+        if (AuthorizedUsers.isAuthorized(iSender)) {
             return true;
         }
         System.out.println("Sender unauthorized! "+iSender);
@@ -146,12 +276,10 @@ public class SMS implements Comparable{
     }
 
     boolean isDateValid() {
-        if (iSender == null || iSender.equals("") || iDate == null || iDate.equals("") || iText == null || iText.equals("")) return false;
-        Date now = new Date();
-        Date beginInterval = new Date(now.getTime()-  3 * 60 * 60 * 1000);
-        Date endInterval = new Date(now.getTime()+  3 * 60 * 60 * 1000);
-        if (iDate.before(beginInterval) || iDate.after(endInterval)){
-            System.out.println("Date of the message "+iPosition+" is not valid! [Date]: "+now+" [Message Date]: "+iDate);
+        if (iSender == null || iSender.isEmpty() || iTimestamp == NO_TIMESTAMP || iText == null || iText.isEmpty()) return false;
+        long tNow = System.currentTimeMillis();
+        if (iTimestamp < tNow - VALIDITY_WINDOW || iTimestamp > tNow + VALIDITY_WINDOW){
+            System.out.println("Date of the message "+iPosition+" is not valid! [Date]: "+new Date(tNow)+" [Message Date]: "+new Date(iTimestamp));
             return false;
         }else
             return true;
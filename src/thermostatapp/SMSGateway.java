@@ -10,11 +10,18 @@ import com.pi4j.io.serial.SerialDataEvent;
 import com.pi4j.io.serial.SerialDataListener;
 import com.pi4j.io.serial.SerialFactory;
 import com.pi4j.io.serial.SerialPortException;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
 
 /**
  *
@@ -23,10 +30,61 @@ import java.util.StringTokenizer;
 public class SMSGateway {
 
     SMSGateway aSMSGateway;
-    Serial serial;
+    SerialTransport serial;
+    ATCommandExecutor iExecutor;
+    private ModemWatchdog iWatchdog;
+    private NetworkMonitor iNetworkMonitor;
+    private ExecutorService iDispatcher;
+    private volatile SMSListener iSMSListener;
+    private final CMGLParser iCMGLParser = new CMGLParser();
     static final private char ctrlZ = (char) 26;
     static final private char ctrlD = (char) 4;
 
+    //deadlines for the modem to frame its final result code
+    static final private long DEFAULT_TIMEOUT = ATCommand.DEFAULT_TIMEOUT;
+    static final private long CMGL_TIMEOUT = 30000;
+    static final private long CMGS_TIMEOUT = 60000;
+
+    //read messages are purged when the SIM store is this full
+    static final private int PURGE_THRESHOLD_PERCENT = 75;
+
+    static final private String MODEM_PROPERTIES = "modem.properties";
+
+    //-Dserial.transport=dio talks to the UART through jdk.dio instead of pi4j,
+    //-Dserial.transport=tty straight to the -Dserial.device file
+    static final private String TRANSPORT_PROPERTY = "serial.transport";
+    static final private String DEVICE_PROPERTY = "serial.device";
+    static final private String DIO_DEVICE = "ttyAMA0";
+    static final private String TTY_DEVICE = "/dev/ttyAMA0";
+
+    private volatile int iBaudRate = BaudRateNegotiator.FALLBACK_RATE;
+    //one reconnect at a time; not this, which a hung listing holds
+    private final Object iReconnectLock = new Object();
+    private boolean iPDUMode = false;
+    private final PDUDecoder iPDUDecoder = new PDUDecoder();
+    private final PDUEncoder iPDUEncoder = new PDUEncoder();
+    //of the concatenated SMS, guarded by iPDUEncoder
+    private int iConcatenationReference = 0;
+    private boolean iBulkDeleteSupported = false;
+    private volatile int iStorageUsed = -1;
+    private volatile int iStorageTotal = -1;
+
+    public SMSGateway() {
+        super();
+    }
+
+    /**
+     * Talks to aSerial instead of the port from SerialFactory, e.g. to a
+     * GSMModemSimulator.
+     */
+    public SMSGateway(Serial aSerial) {
+        serial = new Pi4JSerialTransport(aSerial, Serial.DEFAULT_COM_PORT);
+    }
+
+    public SMSGateway(SerialTransport aTransport) {
+        serial = aTransport;
+    }
+
     public SMSGateway getInstance() {
         if (aSMSGateway == null) {
             aSMSGateway = new SMSGateway();
@@ -36,12 +94,35 @@ public class SMSGateway {
     }
 
     public void initialize() {
-        System.out.println(" ... connect using settings: 9600, N, 8, 1.");
-
-        // create an instance of the serial communications class
-        serial = SerialFactory.createInstance();
-        serial.open(Serial.DEFAULT_COM_PORT, 9600);
-        whaitABit(10000);
+        if (serial == null) {
+            // create an instance of the serial communications class
+            serial = createTransport();
+            //the modem needs time to boot
+            whaitABit(10000);
+        }
+        iBaudRate = new BaudRateNegotiator(serial, new File(MODEM_PROPERTIES)).negotiate();
+        System.out.println(" ... connected using settings: " + iBaudRate + ", N, 8, 1.");
+        //before the executor starts: a +CMTI drained at once needs it
+        iDispatcher = Executors.newSingleThreadExecutor();
+        iExecutor = new ATCommandExecutor(serial);
+        iExecutor.setUnsolicitedResponseListener(new UnsolicitedResponseListener() {
+            @Override
+            public void unsolicitedResponse(String aLine) {
+                if (aLine.startsWith("+CMTI:")) {
+                    newMessageIndication(aLine);
+                }
+            }
+        });
+        iExecutor.start();
+        iCMGLParser.setPDUMode(iPDUMode);
+        configureModem();
+        //+CMGD: (1-20),(0-4) when AT+CMGD=<index>,<delflag> is supported
+        iBulkDeleteSupported = execute(new ATCommand("AT+CMGD=?")).getRaw().contains("),(");
+        checkStorage();
+        iWatchdog = new ModemWatchdog(this);
+        iWatchdog.start();
+        iNetworkMonitor = new NetworkMonitor(this);
+        iNetworkMonitor.start();
 
         // create and register the serial data listener
         /*serial.addListener(new SerialDataListener() {
@@ -55,8 +136,145 @@ public class SMSGateway {
          });*/
     }
 
-    public void sendText(String aString) {
+    /**
+     * PDU or text mode, and +CMTI: "SM",<index> as soon as a message is
+     * stored. High priority: after a reconnect it goes before the queue.
+     */
+    private void configureModem() {
+        execute(new ATCommand(iPDUMode ? "AT+CMGF=0" : "AT+CMGF=1", DEFAULT_TIMEOUT, ATCommand.PRIORITY_HIGH));
+        execute(new ATCommand("AT+CNMI=2,1,0,0,0", DEFAULT_TIMEOUT, ATCommand.PRIORITY_HIGH));
+    }
+
+    /**
+     * Closes and reopens the port, negotiating the rate again, and sets the
+     * modem up again. The queued commands wait meanwhile and then go on.
+     * Returns whether the modem answers. The port itself is kept from the
+     * worker by pause(), so this does not wait for a listing in progress.
+     */
+    public boolean reconnect() {
+        synchronized (iReconnectLock) {
+            System.out.println("SMSGateway: reconnecting to the modem");
+            BaudRateNegotiator tNegotiator = new BaudRateNegotiator(serial, new File(MODEM_PROPERTIES));
+            iExecutor.pause();
+            try {
+                serial.close();
+                //the rate in use is kept if the modem still answers at it: no new negotiation, no AT&W
+                if (!tNegotiator.answersAt(iBaudRate)) {
+                    iBaudRate = tNegotiator.negotiate();
+                    if (!tNegotiator.hasAnswered()) {
+                        return false;
+                    }
+                }
+            } finally {
+                iExecutor.resume();
+            }
+            configureModem();
+            return execute(new ATCommand("AT", DEFAULT_TIMEOUT, ATCommand.PRIORITY_HIGH)).isOK();
+        }
+    }
+
+    /**
+     * When the modem last answered a command.
+     */
+    public long getLastAnswer() {
+        return iExecutor.getLastAnswer();
+    }
+
+    public ModemWatchdog getWatchdog() {
+        return iWatchdog;
+    }
+
+    public NetworkMonitor getNetworkMonitor() {
+        return iNetworkMonitor;
+    }
+
+    private static SerialTransport createTransport() {
+        if ("dio".equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY))) {
+            return new DIOUARTTransport(DIO_DEVICE);
+        }
+        if ("tty".equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY))) {
+            return new TtyTransport(System.getProperty(DEVICE_PROPERTY, TTY_DEVICE));
+        }
+        return new Pi4JSerialTransport(SerialFactory.createInstance(), Serial.DEFAULT_COM_PORT);
+    }
+
+    /**
+     * Queues an AT+CMGS for aText to aRecipient, encoded as a PDU in PDU
+     * mode. The response carries +CMGS: <ref> when the network accepted it.
+     * A text longer than one message goes as the parts of a concatenated SMS
+     * in PDU mode, as separate messages in text mode, which has no user data
+     * header; the response is then the first one that failed, or the last.
+     */
+    public CompletableFuture<ATResponse> sendText(String aRecipient, String aText) {
+        List<String> tParts = PDUEncoder.split(aText);
+        CompletableFuture<ATResponse> tResult = null;
+        synchronized (iPDUEncoder) {
+            iConcatenationReference = (iConcatenationReference + 1) & 0xFF;
+            for (int i = 0; i < tParts.size(); i++) {
+                CompletableFuture<ATResponse> tPart;
+                if (!iPDUMode) {
+                    tPart = submit(new ATCommand("AT+CMGS=\"" + aRecipient + "\"", tParts.get(i), CMGS_TIMEOUT, ATCommand.PRIORITY_HIGH));
+                } else {
+                    String tPDU = iPDUEncoder.encodeSubmit(aRecipient, tParts.get(i), iConcatenationReference, i + 1, tParts.size());
+                    tPart = submit(new ATCommand("AT+CMGS=" + iPDUEncoder.getTPDULength(), tPDU, CMGS_TIMEOUT, ATCommand.PRIORITY_HIGH));
+                }
+                tResult = tResult == null ? tPart : tResult.thenCombine(tPart, new BiFunction<ATResponse, ATResponse, ATResponse>() {
+                    @Override
+                    public ATResponse apply(ATResponse aFirst, ATResponse aNext) {
+                        return aFirst.isOK() ? aNext : aFirst;
+                    }
+                });
+            }
+        }
+        return tResult;
+    }
+
+    /**
+     * Returns the message reference of a +CMGS: <ref> reply, -1 if missing.
+     */
+    static int messageReference(ATResponse aResponse) {
+        if (!aResponse.isOK()) {
+            return -1;
+        }
+        StringTokenizer st = new StringTokenizer(aResponse.getRaw(), "\r\n");
+        while (st.hasMoreTokens()) {
+            String s = st.nextToken().trim();
+            if (s.startsWith("+CMGS:")) {
+                try {
+                    return Integer.parseInt(s.substring(6).trim());
+                } catch (NumberFormatException ex) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receive in PDU mode: exact timestamps and UCS2 texts. To be set before
+     * initialize().
+     */
+    public void setPDUMode(boolean aPDUMode) {
+        iPDUMode = aPDUMode;
+    }
+
+    public int getBaudRate() {
+        return iBaudRate;
+    }
+
+    public boolean isPDUMode() {
+        return iPDUMode;
+    }
+
+    public void setSMSListener(SMSListener aListener) {
+        iSMSListener = aListener;
+    }
 
+    /**
+     * Queues a command on the modem. Safe to call from any thread.
+     */
+    public CompletableFuture<ATResponse> submit(ATCommand aCommand) {
+        return iExecutor.submit(aCommand);
     }
 
     public String readAllMessagesRaw() {
@@ -84,112 +302,220 @@ public class SMSGateway {
          On
          OK
          */
-        System.out.println("---->Sending: AT+CMGL=\"ALL\"");
-        serial.write("AT+CMGL=\"ALL\"\r");
-        whaitABit(3000); //TODO tweeka
-        return readAnswer();
+        return execute(new ATCommand("AT+CMGL=\"ALL\"", CMGL_TIMEOUT, ATCommand.PRIORITY_LOW)).getRaw();
 
     }
 
     /**
-     * Gets all messages. But just the first line.
+     * Gets all messages, parsed while the listing streams in.
      *
      */
     public List<SMS> getAllMessages() {
-        List<SMS> tSMSs = new ArrayList<SMS>();
-        StringTokenizer st = new StringTokenizer(readAllMessagesRaw(), "\r\n");
-        int i = 1;
-        List<String> tRows = new ArrayList<String>();
+        return listMessages("ALL");
+    }
 
-        while (st.hasMoreTokens()) {
-            tRows.add(st.nextToken());
-        }
-        boolean headClean = false, smsNotAddedYet = false;
-        SMS tSMS = new SMS();
+    /**
+     * Gets the messages not read yet. The modem marks them as read.
+     */
+    public List<SMS> getUnreadMessages() {
+        return listMessages("REC UNREAD");
+    }
 
-        outerLoop:
-        for (int j = 0; j < tRows.size() - 1; j++) {
-            String s = tRows.get(j);
-            while (!headClean && !s.startsWith("+CMGL")) {
-                continue outerLoop;
+    private synchronized List<SMS> listMessages(String aStatus) {
+        final List<SMS> tSMSs = new ArrayList<SMS>();
+        iCMGLParser.reset(new SMSListener() {
+            @Override
+            public void smsReceived(SMS aSMS) {
+                tSMSs.add(aSMS);
             }
-            headClean = true;
-            if (s.startsWith("+CMGL")) {
-                tSMS = new SMS();
-                tSMS.parseHeaderAndSetData(s);
-                continue;
-            } else {
-                tSMS.setText(tSMS.getText() + s);
-                tSMSs.add(tSMS);
-                continue;
+        });
+        execute(new ATCommand("AT+CMGL=" + listArgument(aStatus), CMGL_TIMEOUT, ATCommand.PRIORITY_LOW, iCMGLParser));
+        iCMGLParser.finish();
+        return tSMSs;
+    }
+
+    private String listArgument(String aStatus) {
+        if (!iPDUMode) {
+            return "\"" + aStatus + "\"";
+        }
+        if (aStatus.equals("REC UNREAD")) {
+            return "0";
+        } else if (aStatus.equals("REC READ")) {
+            return "1";
+        }
+        return "4";
+    }
+
+    public boolean deleteMessage(int aPos) {
+        return execute(new ATCommand("AT+CMGD=" + aPos, DEFAULT_TIMEOUT, ATCommand.PRIORITY_LOW)).isOK();
+    }
+
+    /**
+     * Deletes messages already read. aSMSs have all been read: with the bulk
+     * flag it is a single AT+CMGD=1,1, otherwise one AT+CMGD per message.
+     */
+    public void deleteMessages(List<SMS> aSMSs) {
+        if (aSMSs.isEmpty()) {
+            return;
+        }
+        if (iBulkDeleteSupported) {
+            deleteReadMessages();
+            return;
+        }
+        for (SMS tSMS : aSMSs) {
+            deleteMessage(tSMS.getPosition());
+        }
+    }
+
+    public boolean deleteReadMessages() {
+        if (iBulkDeleteSupported) {
+            return execute(new ATCommand("AT+CMGD=1,1", CMGL_TIMEOUT, ATCommand.PRIORITY_LOW)).isOK();
+        }
+        boolean tAllDeleted = true;
+        for (SMS tSMS : listMessages("REC READ")) {
+            tAllDeleted &= deleteMessage(tSMS.getPosition());
+        }
+        return tAllDeleted;
+    }
+
+    /**
+     * Updates the SIM store usage with AT+CPMS? and purges the read messages
+     * when it is above PURGE_THRESHOLD_PERCENT.
+     */
+    public void checkStorage() {
+        /*
+         +CPMS: "SM",12,20,"SM",12,20,"SM",12,20
+         */
+        StringTokenizer st = new StringTokenizer(execute(new ATCommand("AT+CPMS?", DEFAULT_TIMEOUT, ATCommand.PRIORITY_LOW)).getRaw(), "\r\n");
+        while (st.hasMoreTokens()) {
+            String s = st.nextToken();
+            if (s.startsWith("+CPMS:")) {
+                StringTokenizer tFields = new StringTokenizer(s.substring(6), ",");
+                try {
+                    tFields.nextToken();
+                    iStorageUsed = Integer.parseInt(tFields.nextToken().trim());
+                    iStorageTotal = Integer.parseInt(tFields.nextToken().trim());
+                } catch (RuntimeException ex) {
+                    System.out.println("SMSGateway: cannot parse storage: " + s);
+                    return;
+                }
             }
         }
+        if (iStorageTotal > 0 && iStorageUsed * 100 >= iStorageTotal * PURGE_THRESHOLD_PERCENT) {
+            System.out.println("SMSGateway: SIM store " + iStorageUsed + "/" + iStorageTotal + ", purging read messages");
+            deleteReadMessages();
+        }
+    }
 
-        //System.out.println("STOP READING SMS");
-        //for (int j=0; j<tRows.size(); j++){
-        //    System.out.println("[ROW]: "+j+" "+tRows.get(j));
-        //}
-        return tSMSs;
+    public int getStorageUsed() {
+        return iStorageUsed;
     }
 
-    public String readMsgAtCertainPosition(int aPos) {
-        System.out.println("---->Sending: AT+CMGR=" + aPos);
-        serial.write("AT+CMGR=" + aPos + "\r");
-        whaitABit(3000); //TODO tweeka
-        return readAnswer();
+    public int getStorageTotal() {
+        return iStorageTotal;
     }
 
-    public void sendTextAndReadWithoutListenerTEST(String aString) {
-        System.out.println("---->Sending: AT");
-        serial.write("AT\r");
-        readAnswerAndPrint();
+    public String readMsgAtCertainPosition(int aPos) {
+        return execute(new ATCommand("AT+CMGR=" + aPos, DEFAULT_TIMEOUT, ATCommand.PRIORITY_NORMAL)).getRaw();
+    }
 
-        System.out.println("---->Sending: AT+CMGF=1");
-        serial.write("AT+CMGF=1\r");
-        readAnswerAndPrint();
+    /**
+     * Reads the message stored at aPos with AT+CMGR. Returns null if there is
+     * none or the reply cannot be parsed.
+     */
+    public SMS getMessageAtPosition(int aPos) {
+        StringTokenizer st = new StringTokenizer(readMsgAtCertainPosition(aPos), "\r\n");
+        while (st.hasMoreTokens()) {
+            String s = st.nextToken();
+            if (s.startsWith("+CMGR:") && st.hasMoreTokens() && iPDUMode) {
+                //+CMGR: <stat>,[<alpha>],<length> and the PDU
+                SMS tSMS = new SMS();
+                tSMS.setPosition(aPos);
+                byte[] tPDU = st.nextToken().trim().getBytes(StandardCharsets.ISO_8859_1);
+                synchronized (iPDUDecoder) {
+                    return iPDUDecoder.decode(tPDU, 0, tPDU.length, tSMS) ? tSMS : null;
+                }
+            } else if (s.startsWith("+CMGR:") && st.hasMoreTokens()) {
+                try {
+                    SMS tSMS = new SMS();
+                    tSMS.parseReadHeaderAndSetData(s, aPos);
+                    tSMS.setText(st.nextToken());
+                    return tSMS;
+                } catch (RuntimeException ex) {
+                    System.out.println("SMSGateway: cannot parse message " + aPos + ": " + s);
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
 
-        System.out.println("---->Sending: AT+CMGS=\"+46700447531\"");
-        serial.write("AT+CMGS=\"+46700447531\"\r");
-        readAnswerAndPrint();
+    /**
+     * +CMTI: "SM",3 arrives on the executor thread, the message is read and
+     * handed to the listener on the dispatcher thread.
+     */
+    private void newMessageIndication(String aLine) {
+        final int tPos;
+        try {
+            tPos = Integer.parseInt(aLine.substring(aLine.lastIndexOf(',') + 1).trim());
+        } catch (NumberFormatException ex) {
+            System.out.println("SMSGateway: malformed indication: " + aLine);
+            return;
+        }
+        ExecutorService tDispatcher = iDispatcher;
+        if (tDispatcher == null) {
+            return;
+        }
+        tDispatcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                SMS tSMS = getMessageAtPosition(tPos);
+                SMSListener tListener = iSMSListener;
+                if (tSMS != null && tListener != null) {
+                    tListener.smsReceived(tSMS);
+                }
+            }
+        });
+    }
 
-        System.out.println("---->Sending: " + aString);
-        serial.write(aString + ctrlZ);
-        //this is needed because sending the sms takes time
-        whaitABit(4000);
-        readAnswerAndPrint();
+    public void sendTextAndReadWithoutListenerTEST(String aString) {
+        printAnswer(execute(new ATCommand("AT")));
+        try {
+            printAnswer(sendText(AuthorizedUsers.STEFAN1, aString).get());
+        } catch (InterruptedException | ExecutionException ex) {
+            ex.printStackTrace();
+        }
     }
 
     public void testLoopingAT() {
         for (int i = 0; i < 10; i++) {
             System.out.println("----Sending: AT (" + i + "), " + new Date().toString());
-            serial.write("AT\r");
-            readAnswerAndPrint();
+            printAnswer(execute(new ATCommand("AT")));
             whaitABit(5000);
         }
     }
 
-    private void readAnswerAndPrint() {
-        whaitABit(1000);
-        StringBuffer reply = new StringBuffer();
-        while (serial.availableBytes() > 0) {
-            reply.append(serial.read());
-        }
-        if (reply.length() > 0) {
-            System.out.println("//////:\n" + reply + "//////");
+    private void printAnswer(ATResponse aResponse) {
+        if (aResponse.getRaw().length() > 0) {
+            System.out.println("//////:\n" + aResponse.getRaw() + "//////");
         } else {
             System.out.println("<---->NO ANSWER FROM GSM MODULE!");
         }
-        //whaitABit(1000);
     }
 
-    private String readAnswer() {
-        whaitABit(1000);
-        StringBuffer tReply = new StringBuffer();
-        while (serial.availableBytes() > 0) {
-            tReply.append(serial.read());
+    /**
+     * Queues aCommand and waits for its response. Returns an empty, timed out
+     * response if the executor fails or the caller is interrupted.
+     */
+    private ATResponse execute(ATCommand aCommand) {
+        try {
+            return submit(aCommand).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            System.out.println("SMSGateway: " + aCommand + " failed: " + ex.getCause());
         }
-        //System.out.println("RAW messages:\n"+tReply.toString());
-        return tReply.toString();
+        return new ATResponse(aCommand, "", null, 0);
     }
 
     private void whaitABit(int a) {
@@ -202,6 +528,22 @@ public class SMSGateway {
     }
 
     public void stop() {
+        if (iWatchdog != null) {
+            iWatchdog.stop();
+            iWatchdog = null;
+        }
+        if (iNetworkMonitor != null) {
+            iNetworkMonitor.stop();
+            iNetworkMonitor = null;
+        }
+        if (iDispatcher != null) {
+            iDispatcher.shutdownNow();
+            iDispatcher = null;
+        }
+        if (iExecutor != null) {
+            iExecutor.stop();
+            iExecutor = null;
+        }
         if (serial != null) {
             serial.close();
             serial = null;
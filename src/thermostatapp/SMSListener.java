@@ -0,0 +1,18 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Receives the messages pushed by the SMSGateway as soon as the modem
+ * signals them.
+ *
+ * @author Ste
+ */
+public interface SMSListener {
+
+    void smsReceived(SMS aSMS);
+
+}
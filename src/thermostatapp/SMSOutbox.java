@@ -0,0 +1,277 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Outgoing messages. send() only queues and returns; a sender thread pushes
+ * them through the SMSGateway one at a time, at most MAX_PER_HOUR per hour,
+ * retrying with exponential backoff. The queue is written to a file on every
+ * change so pending messages survive a restart. A message sent with a
+ * coalesce key replaces the pending one to the same recipient with the same
+ * key, e.g. an older status reply.
+ *
+ * @author Ste
+ */
+public class SMSOutbox {
+
+    public static final String KEY_STATUS = "status";
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long FIRST_RETRY_DELAY = 30 * 1000;
+    private static final long MAX_RETRY_DELAY = 30 * 60 * 1000;
+    private static final long MIN_SEND_INTERVAL = 5 * 1000;
+    private static final int MAX_PER_HOUR = 20;
+    private static final long SEND_TIMEOUT = 90 * 1000;
+
+    private final SMSGateway iSMSGateway;
+    private final File iFile;
+    private final List<OutgoingSMS> iPending = new ArrayList<OutgoingSMS>();
+    //send times of the last MAX_PER_HOUR messages, as a ring
+    private final long[] iSentAt = new long[MAX_PER_HOUR];
+    private int iSentIndex = 0;
+    private long iLastSent = 0;
+    private OutgoingSMS iInFlight;
+    private Thread iSender;
+    private volatile boolean iRunning = false;
+
+    public SMSOutbox(SMSGateway aSMSGateway, File aFile) {
+        iSMSGateway = aSMSGateway;
+        iFile = aFile;
+    }
+
+    public synchronized void start() {
+        if (iRunning) {
+            return;
+        }
+        load();
+        iRunning = true;
+        iSender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (iRunning) {
+                    OutgoingSMS tNext = nextDue();
+                    if (tNext != null) {
+                        deliver(tNext);
+                    }
+                }
+            }
+        }, "SMSOutbox");
+        iSender.setDaemon(true);
+        iSender.start();
+    }
+
+    public void send(String aRecipient, String aText) {
+        send(aRecipient, aText, null);
+    }
+
+    /**
+     * Queues aText for aRecipient without waiting. If aCoalesceKey is not null
+     * it replaces the text of a pending message with the same recipient and
+     * key that is not being sent right now.
+     */
+    public synchronized void send(String aRecipient, String aText, String aCoalesceKey) {
+        if (aCoalesceKey != null) {
+            for (OutgoingSMS tSMS : iPending) {
+                if (tSMS != iInFlight && aCoalesceKey.equals(tSMS.iCoalesceKey) && aRecipient.equals(tSMS.iRecipient)) {
+                    System.out.println("SMSOutbox: superseding message to " + aRecipient);
+                    tSMS.iText = aText;
+                    save();
+                    return;
+                }
+            }
+        }
+        iPending.add(new OutgoingSMS(aRecipient, aText, aCoalesceKey, 0, 0));
+        save();
+        notifyAll();
+    }
+
+    public synchronized int getPendingCount() {
+        return iPending.size();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            iRunning = false;
+            notifyAll();
+        }
+        if (iSender != null) {
+            iSender.interrupt();
+            try {
+                iSender.join(1000);
+            } catch (InterruptedException ex) {
+                ex.printStackTrace();
+            }
+            iSender = null;
+        }
+    }
+
+    /**
+     * Waits until a message is due and the rate limit allows it.
+     */
+    private synchronized OutgoingSMS nextDue() {
+        while (iRunning) {
+            long tNow = System.currentTimeMillis();
+            long tWakeUp = Long.MAX_VALUE;
+            for (OutgoingSMS tSMS : iPending) {
+                tWakeUp = Math.min(tWakeUp, tSMS.iNextAttempt);
+            }
+            if (tWakeUp != Long.MAX_VALUE) {
+                tWakeUp = Math.max(tWakeUp, iLastSent + MIN_SEND_INTERVAL);
+                //the oldest of the last MAX_PER_HOUR must be an hour old
+                tWakeUp = Math.max(tWakeUp, iSentAt[iSentIndex] + 60 * 60 * 1000);
+            }
+            if (tWakeUp <= tNow) {
+                for (OutgoingSMS tSMS : iPending) {
+                    if (tSMS.iNextAttempt <= tNow) {
+                        iInFlight = tSMS;
+                        return tSMS;
+                    }
+                }
+            }
+            try {
+                wait(tWakeUp == Long.MAX_VALUE ? 0 : tWakeUp - tNow);
+            } catch (InterruptedException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void deliver(OutgoingSMS aSMS) {
+        String tText;
+        synchronized (this) {
+            tText = aSMS.iText;
+        }
+        int tReference = -1;
+        try {
+            ATResponse tResponse = iSMSGateway.sendText(aSMS.iRecipient, tText).get(SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+            tReference = SMSGateway.messageReference(tResponse);
+            System.out.println("SMSOutbox: " + tResponse);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            System.out.println("SMSOutbox: sending to " + aSMS.iRecipient + " failed: " + ex);
+        }
+        synchronized (this) {
+            iInFlight = null;
+            long tNow = System.currentTimeMillis();
+            iLastSent = tNow;
+            iSentAt[iSentIndex] = tNow;
+            iSentIndex = (iSentIndex + 1) % MAX_PER_HOUR;
+            if (tReference >= 0) {
+                System.out.println("SMSOutbox: sent to " + aSMS.iRecipient + " [ref]: " + tReference);
+                iPending.remove(aSMS);
+            } else if (++aSMS.iAttempts >= MAX_ATTEMPTS) {
+                System.out.println("SMSOutbox: giving up on message to " + aSMS.iRecipient + " after " + aSMS.iAttempts + " attempts");
+                iPending.remove(aSMS);
+            } else {
+                long tDelay = Math.min(FIRST_RETRY_DELAY << (aSMS.iAttempts - 1), MAX_RETRY_DELAY);
+                aSMS.iNextAttempt = tNow + tDelay;
+                System.out.println("SMSOutbox: retry " + aSMS.iAttempts + " to " + aSMS.iRecipient + " in " + tDelay / 1000 + "s");
+            }
+            save();
+        }
+    }
+
+    /**
+     * One message per line: recipient, coalesce key, attempts and text,
+     * tab separated. Written to a temporary file and renamed over the old one.
+     */
+    private void save() {
+        File tTemp = new File(iFile.getPath() + ".tmp");
+        try (BufferedWriter tWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tTemp), StandardCharsets.UTF_8))) {
+            for (OutgoingSMS tSMS : iPending) {
+                tWriter.write(escape(tSMS.iRecipient) + "\t" + escape(tSMS.iCoalesceKey == null ? "" : tSMS.iCoalesceKey)
+                        + "\t" + tSMS.iAttempts + "\t" + escape(tSMS.iText));
+                tWriter.newLine();
+            }
+        } catch (IOException ex) {
+            System.out.println("SMSOutbox: cannot write " + tTemp + ": " + ex.getMessage());
+            return;
+        }
+        if (!tTemp.renameTo(iFile)) {
+            iFile.delete();
+            if (!tTemp.renameTo(iFile)) {
+                System.out.println("SMSOutbox: cannot replace " + iFile);
+            }
+        }
+    }
+
+    private synchronized void load() {
+        if (!iFile.exists()) {
+            return;
+        }
+        try (BufferedReader tReader = new BufferedReader(new InputStreamReader(new FileInputStream(iFile), StandardCharsets.UTF_8))) {
+            String tLine;
+            while ((tLine = tReader.readLine()) != null) {
+                String[] tFields = tLine.split("\t", 4);
+                if (tFields.length < 4) {
+                    continue;
+                }
+                try {
+                    iPending.add(new OutgoingSMS(unescape(tFields[0]), unescape(tFields[3]),
+                            tFields[1].isEmpty() ? null : unescape(tFields[1]), Integer.parseInt(tFields[2]), 0));
+                } catch (NumberFormatException ex) {
+                    System.out.println("SMSOutbox: skipping malformed line: " + tLine);
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("SMSOutbox: cannot read " + iFile + ": " + ex.getMessage());
+        }
+        System.out.println("SMSOutbox: " + iPending.size() + " pending messages restored");
+    }
+
+    private static String escape(String aString) {
+        return aString.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String aString) {
+        StringBuilder tResult = new StringBuilder(aString.length());
+        for (int i = 0; i < aString.length(); i++) {
+            char c = aString.charAt(i);
+            if (c == '\\' && i + 1 < aString.length()) {
+                char tNext = aString.charAt(++i);
+                tResult.append(tNext == 't' ? '\t' : tNext == 'n' ? '\n' : tNext == 'r' ? '\r' : tNext);
+            } else {
+                tResult.append(c);
+            }
+        }
+        return tResult.toString();
+    }
+
+    private static class OutgoingSMS {
+
+        final String iRecipient;
+        final String iCoalesceKey;
+        String iText;
+        int iAttempts;
+        long iNextAttempt;
+
+        OutgoingSMS(String aRecipient, String aText, String aCoalesceKey, int aAttempts, long aNextAttempt) {
+            iRecipient = aRecipient;
+            iText = aText;
+            iCoalesceKey = aCoalesceKey;
+            iAttempts = aAttempts;
+            iNextAttempt = aNextAttempt;
+        }
+    }
+
+}
@@ -0,0 +1,18 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Read readiness of a SerialTransport. Must return quickly: the data is read
+ * by whoever owns the transport, not in the callback.
+ *
+ * @author Ste
+ */
+public interface SerialReadListener {
+
+    void dataAvailable(SerialTransport aTransport);
+
+}
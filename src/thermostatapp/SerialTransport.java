@@ -0,0 +1,52 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte oriented access to a serial port, whatever library is behind it.
+ * The gateway only talks to this, so the backends (Pi4JSerialTransport,
+ * DIOUARTTransport, TtyTransport) can be swapped and compared.
+ *
+ * @author Ste
+ */
+public interface SerialTransport {
+
+    /**
+     * Opens the port at aBaudRate, 8N1, reopening it if already open.
+     */
+    void open(int aBaudRate) throws IOException;
+
+    void close();
+
+    boolean isOpen();
+
+    /**
+     * Reads what is available into aBuffer without waiting. Returns the
+     * number of bytes read, 0 if nothing was there.
+     */
+    int read(ByteBuffer aBuffer) throws IOException;
+
+    /**
+     * Waits up to aTimeout milliseconds for data, then reads as
+     * read(ByteBuffer).
+     */
+    int read(ByteBuffer aBuffer, long aTimeout) throws IOException;
+
+    /**
+     * Writes the remaining bytes of aBuffer, returns how many.
+     */
+    int write(ByteBuffer aBuffer) throws IOException;
+
+    /**
+     * aListener is called, on a thread of the transport, when data is
+     * available. null removes it.
+     */
+    void setReadListener(SerialReadListener aListener);
+
+}
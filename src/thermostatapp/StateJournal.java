@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the Controller state across restarts, so that after a power cut the
+ * mode and target come back as soon as the pins are open, before the modem
+ * and the schedulers come up.
+ *
+ * Every mode or target the Controller applies is appended to the journal
+ * file as a fixed RECORD_SIZE record (sequence, time, mode, a reserved byte,
+ * target, CRC32) and forced to disk. The heat request is not kept: it
+ * follows the thermostat and HeatingControl, which raise it again after a
+ * restart. Every SNAPSHOT_PERIOD records the last state
+ * is written as the snapshot, through a temp file and a rename, and the
+ * journal starts again empty. recover() reads the snapshot and replays the
+ * journal records after it up to the first torn one.
+ *
+ * @author Ste
+ */
+public class StateJournal {
+
+    static final int RECORD_SIZE = 32;
+    static final int SNAPSHOT_PERIOD = 256;
+
+    private final File iJournalFile;
+    private final File iSnapshotFile;
+    private final ByteBuffer iRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 iCrc = new CRC32();
+    private FileChannel iJournal;
+    private long iSequence;
+    //time of the last record read
+    private long iTime;
+    private long iRecoveredTime = -1;
+    private int iJournaled;
+
+    public StateJournal(File aJournalFile, File aSnapshotFile) {
+        iJournalFile = aJournalFile;
+        iSnapshotFile = aSnapshotFile;
+    }
+
+    /**
+     * The last state written, with no heat request, null if there is none.
+     * Opens the journal for append, dropping a torn last record. Its time is
+     * then in getRecoveredTime().
+     */
+    public synchronized Controller.State recover() throws IOException {
+        Controller.State tState = null;
+        iRecoveredTime = -1;
+        if (iSnapshotFile.exists()) {
+            try (FileChannel tSnapshot = new RandomAccessFile(iSnapshotFile, "r").getChannel()) {
+                tState = readRecord(tSnapshot);
+            }
+            if (tState != null) {
+                iRecoveredTime = iTime;
+            }
+            if (tState == null) {
+                System.out.println("StateJournal: snapshot not valid, " + iSnapshotFile);
+            }
+        }
+        long tSnapshotSequence = iSequence;
+        iJournal = new RandomAccessFile(iJournalFile, "rw").getChannel();
+        long tValidLength = 0;
+        iJournal.position(0);
+        Controller.State tRecord;
+        while ((tRecord = readRecord(iJournal)) != null) {
+            tValidLength += RECORD_SIZE;
+            iJournaled++;
+            if (iSequence > tSnapshotSequence) {
+                tState = tRecord;
+                iRecoveredTime = iTime;
+            }
+        }
+        if (tValidLength < iJournal.size()) {
+            System.out.println("StateJournal: dropping " + (iJournal.size() - tValidLength) + " bytes after the last valid record");
+            iJournal.truncate(tValidLength);
+        }
+        iJournal.position(tValidLength);
+        iSequence = Math.max(iSequence, tSnapshotSequence);
+        return tState;
+    }
+
+    /**
+     * Appends aState and forces it to disk, compacting the journal into the
+     * snapshot every SNAPSHOT_PERIOD records.
+     */
+    public synchronized void append(Controller.State aState) throws IOException {
+        if (iJournal == null) {
+            iJournal = new RandomAccessFile(iJournalFile, "rw").getChannel();
+            iJournal.position(iJournal.size());
+        }
+        fillRecord(++iSequence, aState);
+        while (iRecord.hasRemaining()) {
+            iJournal.write(iRecord);
+        }
+        iJournal.force(false);
+        if (++iJournaled >= SNAPSHOT_PERIOD) {
+            snapshot();
+        }
+    }
+
+    /**
+     * When the state recover() returned was written, -1 if there was none.
+     */
+    public synchronized long getRecoveredTime() {
+        return iRecoveredTime;
+    }
+
+    public synchronized void close() {
+        if (iJournal != null) {
+            try {
+                iJournal.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            iJournal = null;
+        }
+    }
+
+    /**
+     * Writes the record just appended as the snapshot, then empties the
+     * journal. A crash in between leaves records the snapshot already
+     * covers; recover() skips them by sequence.
+     */
+    private void snapshot() throws IOException {
+        File tTemp = new File(iSnapshotFile.getPath() + ".tmp");
+        try (FileOutputStream tOut = new FileOutputStream(tTemp)) {
+            iRecord.rewind();
+            tOut.getChannel().write(iRecord);
+            tOut.getChannel().force(false);
+        }
+        if (!tTemp.renameTo(iSnapshotFile)) {
+            iSnapshotFile.delete();
+            if (!tTemp.renameTo(iSnapshotFile)) {
+                System.out.println("StateJournal: cannot replace " + iSnapshotFile);
+                return;
+            }
+        }
+        iJournal.truncate(0);
+        iJournal.position(0);
+        iJournaled = 0;
+    }
+
+    private void fillRecord(long aSequence, Controller.State aState) {
+        iRecord.clear();
+        iRecord.putLong(aSequence);
+        iRecord.putLong(System.currentTimeMillis());
+        iRecord.put((byte) aState.iMode.ordinal());
+        //reserved, the heat request is not journaled
+        iRecord.put((byte) 0);
+        iRecord.putShort((short) 0);
+        iRecord.putDouble(aState.iTarget);
+        iCrc.reset();
+        iCrc.update(iRecord.array(), 0, RECORD_SIZE - 4);
+        iRecord.putInt((int) iCrc.getValue());
+        iRecord.flip();
+    }
+
+    /**
+     * The next record of aChannel, null at the end or at a torn record.
+     * Sets iSequence and iTime to its sequence and time.
+     */
+    private Controller.State readRecord(FileChannel aChannel) throws IOException {
+        iRecord.clear();
+        while (iRecord.hasRemaining()) {
+            if (aChannel.read(iRecord) < 0) {
+                return null;
+            }
+        }
+        iCrc.reset();
+        iCrc.update(iRecord.array(), 0, RECORD_SIZE - 4);
+        if (iRecord.getInt(RECORD_SIZE - 4) != (int) iCrc.getValue()) {
+            return null;
+        }
+        int tMode = iRecord.get(16);
+        if (tMode < 0 || tMode >= Status.values().length) {
+            return null;
+        }
+        iSequence = iRecord.getLong(0);
+        iTime = iRecord.getLong(8);
+        return new Controller.State(Status.values()[tMode], false, iRecord.getDouble(20));
+    }
+
+}
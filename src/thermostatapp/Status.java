@@ -13,6 +13,8 @@ package thermostatapp;
 public enum Status {
     ON,
     MANUAL,
-    OFF;
+    OFF,
+    //closed loop on the temperature, see HeatingControl
+    AUTO;
     
 }
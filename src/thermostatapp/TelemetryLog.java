@@ -0,0 +1,521 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only log of readings and Controller transitions, kept across
+ * reboots in SEGMENT_SIZE files written through a MappedByteBuffer: the OS
+ * writes the dirty pages back, append() never forces them.
+ *
+ * A record is a time, an int value (millidegrees) and flags (mode, heating,
+ * sample or transition), compressed as in Gorilla: delta-of-delta times,
+ * XOR of the value with the previous one, flags only when they change. A
+ * 10 s sample with a steady temperature takes a few bits.
+ *
+ * The segment header has two commit slots, written alternately after every
+ * append. A slot is checksummed and holds the record count, the length in
+ * bits and the CRC32 of the data, so after a torn write the newer valid
+ * slot is used and the records after it are ignored.
+ *
+ * @author Ste
+ */
+public class TelemetryLog {
+
+    static final int SEGMENT_SIZE = 64 * 1024;
+    //at about 13 KB a day, close to a year
+    static final int MAX_SEGMENTS = 64;
+
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+    public static final int MODE_MASK = 0x07;
+    public static final int FLAG_HEATING = 0x08;
+    //a Controller transition, otherwise a periodic sample
+    public static final int FLAG_TRANSITION = 0x10;
+
+    private static final int MAGIC = 0x544C4F47;
+    private static final int VERSION = 1;
+    //magic, version, segment sequence, two slots
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_A = 16;
+    private static final int SLOT_B = 40;
+    private static final int DATA_BITS = (SEGMENT_SIZE - HEADER_SIZE) * 8;
+    //64 + 4 bits of time, 32 + 12 of value, 9 of flags
+    private static final int MAX_RECORD_BITS = 128;
+    private static final String PREFIX = "telemetry-";
+    private static final String SUFFIX = ".seg";
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? 0xEDB88320 ^ (c >>> 1) : c >>> 1;
+            }
+            CRC_TABLE[n] = c;
+        }
+    }
+
+    private final File iDirectory;
+    private Segment iSegment;
+    private int iLastValue = NO_VALUE;
+
+    public TelemetryLog(File aDirectory) {
+        iDirectory = aDirectory;
+    }
+
+    /**
+     * Continues the last segment, recovering it after a torn write, or
+     * starts the first one.
+     */
+    public synchronized void open() throws IOException {
+        if (!iDirectory.isDirectory() && !iDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + iDirectory);
+        }
+        long[] tSequences = segments(iDirectory);
+        if (tSequences.length > 0) {
+            Segment tLast = Segment.open(segmentFile(iDirectory, tSequences[tSequences.length - 1]), false);
+            if (tLast != null) {
+                //replay to get the compression state back
+                while (tLast.iCodec.iCount < tLast.iCommittedCount) {
+                    tLast.iCodec.decode(tLast.iBuffer, tLast);
+                }
+                tLast.iBitLength = tLast.iReadBits;
+                tLast.iCrc = crc(tLast.iBuffer, HEADER_SIZE, tLast.iBitLength >>> 3, -1);
+                iLastValue = tLast.iCodec.iPrevValue;
+                iSegment = tLast;
+                return;
+            }
+        }
+        iSegment = Segment.create(iDirectory, tSequences.length == 0 ? 0 : tSequences[tSequences.length - 1] + 1);
+    }
+
+    public void logSample(long aTime, double aTemperature, boolean aHeating, Status aMode) {
+        int tValue = Double.isNaN(aTemperature) ? NO_VALUE : (int) Math.round(aTemperature * 1000);
+        append(aTime, tValue, aMode.ordinal() | (aHeating ? FLAG_HEATING : 0));
+    }
+
+    public void logTransition(long aTime, boolean aHeating, Status aMode) {
+        //the last value again, it costs one bit
+        append(aTime, iLastValue, aMode.ordinal() | (aHeating ? FLAG_HEATING : 0) | FLAG_TRANSITION);
+    }
+
+    /**
+     * Appends a record, rolling to a new segment when this one is full.
+     * Errors are logged, the control path never sees them.
+     */
+    public synchronized void append(long aTime, int aValue, int aFlags) {
+        if (iSegment == null) {
+            return;
+        }
+        try {
+            if (iSegment.iBitLength + MAX_RECORD_BITS > DATA_BITS) {
+                Segment tNext = Segment.create(iDirectory, iSegment.iSequence + 1);
+                iSegment.iBuffer.force();
+                iSegment = tNext;
+                purge();
+            }
+            iSegment.append(aTime, aValue, aFlags);
+            iLastValue = aValue;
+        } catch (IOException ex) {
+            System.out.println("TelemetryLog: cannot append: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Writes the dirty pages out, e.g. before switching off.
+     */
+    public synchronized void close() {
+        if (iSegment != null) {
+            iSegment.iBuffer.force();
+            iSegment = null;
+        }
+    }
+
+    private void purge() {
+        long[] tSequences = segments(iDirectory);
+        for (int i = 0; i < tSequences.length - MAX_SEGMENTS; i++) {
+            if (!segmentFile(iDirectory, tSequences[i]).delete()) {
+                System.out.println("TelemetryLog: cannot delete segment " + tSequences[i]);
+            }
+        }
+    }
+
+    /**
+     * Streams all committed records of aDirectory, oldest first.
+     */
+    public static Reader reader(File aDirectory) {
+        return new Reader(aDirectory);
+    }
+
+    /**
+     * Usage: while (tReader.next()) { tReader.getTime() ... }. The current
+     * segment is read as of its last commit.
+     */
+    public static final class Reader {
+
+        private final File iDirectory;
+        private final long[] iSequences;
+        private int iNext = 0;
+        private Segment iSegment;
+        private long iTime;
+        private int iValue;
+        private int iFlags;
+
+        private Reader(File aDirectory) {
+            iDirectory = aDirectory;
+            iSequences = segments(aDirectory);
+        }
+
+        public boolean next() throws IOException {
+            while (iSegment == null || iSegment.iCodec.iCount >= iSegment.iCommittedCount) {
+                if (iNext >= iSequences.length) {
+                    return false;
+                }
+                iSegment = Segment.open(segmentFile(iDirectory, iSequences[iNext++]), true);
+            }
+            Codec tCodec = iSegment.iCodec;
+            tCodec.decode(iSegment.iBuffer, iSegment);
+            iTime = tCodec.iPrevTime;
+            iValue = tCodec.iPrevValue;
+            iFlags = tCodec.iPrevFlags;
+            return true;
+        }
+
+        public long getTime() {
+            return iTime;
+        }
+
+        /**
+         * Millidegrees, NO_VALUE if there was no reading.
+         */
+        public int getValue() {
+            return iValue;
+        }
+
+        public int getFlags() {
+            return iFlags;
+        }
+
+        public Status getMode() {
+            return Status.values()[iFlags & MODE_MASK];
+        }
+
+        public boolean isHeating() {
+            return (iFlags & FLAG_HEATING) != 0;
+        }
+
+        public boolean isTransition() {
+            return (iFlags & FLAG_TRANSITION) != 0;
+        }
+    }
+
+    /**
+     * One mapped file and its bit stream.
+     */
+    private static final class Segment {
+
+        final long iSequence;
+        final MappedByteBuffer iBuffer;
+        final Codec iCodec = new Codec();
+        int iBitLength = 0;
+        //CRC32 register over the complete bytes of the data
+        int iCrc = -1;
+        int iCommitSequence = 0;
+        int iCommittedCount = 0;
+        //read position of the decoder
+        int iReadBits = 0;
+
+        private Segment(long aSequence, MappedByteBuffer aBuffer) {
+            iSequence = aSequence;
+            iBuffer = aBuffer;
+        }
+
+        static Segment create(File aDirectory, long aSequence) throws IOException {
+            Segment tSegment = new Segment(aSequence, map(segmentFile(aDirectory, aSequence), false));
+            tSegment.iBuffer.putInt(0, MAGIC);
+            tSegment.iBuffer.putInt(4, VERSION);
+            tSegment.iBuffer.putLong(8, aSequence);
+            tSegment.commit();
+            return tSegment;
+        }
+
+        /**
+         * Null if the file is not a segment or no slot is valid.
+         */
+        static Segment open(File aFile, boolean aReadOnly) throws IOException {
+            MappedByteBuffer tBuffer = map(aFile, aReadOnly);
+            if (tBuffer.getInt(0) != MAGIC || tBuffer.getInt(4) != VERSION) {
+                System.out.println("TelemetryLog: " + aFile + " is not a segment");
+                return null;
+            }
+            Segment tSegment = new Segment(tBuffer.getLong(8), tBuffer);
+            int tSlot = newestValidSlot(tBuffer);
+            if (tSlot < 0) {
+                System.out.println("TelemetryLog: no valid commit in " + aFile);
+                return null;
+            }
+            tSegment.iCommitSequence = tBuffer.getInt(tSlot) + 1;
+            tSegment.iCommittedCount = tBuffer.getInt(tSlot + 4);
+            tSegment.iBitLength = tBuffer.getInt(tSlot + 8);
+            return tSegment;
+        }
+
+        private static MappedByteBuffer map(File aFile, boolean aReadOnly) throws IOException {
+            try (RandomAccessFile tFile = new RandomAccessFile(aFile, aReadOnly ? "r" : "rw")) {
+                if (!aReadOnly && tFile.length() < SEGMENT_SIZE) {
+                    tFile.setLength(SEGMENT_SIZE);
+                }
+                if (tFile.length() < SEGMENT_SIZE) {
+                    throw new IOException(aFile + " is truncated");
+                }
+                //the mapping stays valid after the file is closed
+                return tFile.getChannel().map(aReadOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+        }
+
+        void append(long aTime, int aValue, int aFlags) {
+            int tCompleteBefore = iBitLength >>> 3;
+            iCodec.encode(this, aTime, aValue, aFlags);
+            iCrc = crc(iBuffer, HEADER_SIZE + tCompleteBefore, (iBitLength >>> 3) - tCompleteBefore, iCrc);
+            commit();
+        }
+
+        /**
+         * Writes the next slot: sequence, count, bits, data CRC, slot CRC.
+         */
+        void commit() {
+            int tSlot = (iCommitSequence & 1) == 0 ? SLOT_A : SLOT_B;
+            iBuffer.putInt(tSlot, iCommitSequence);
+            iBuffer.putInt(tSlot + 4, iCodec.iCount);
+            iBuffer.putInt(tSlot + 8, iBitLength);
+            iBuffer.putInt(tSlot + 12, dataCrc(iBuffer, iBitLength, iCrc));
+            iBuffer.putInt(tSlot + 16, ~crc(iBuffer, tSlot, 16, -1));
+            iCommittedCount = iCodec.iCount;
+            iCommitSequence++;
+        }
+
+        void writeBits(long aValue, int aBits) {
+            for (int i = aBits - 1; i >= 0; i--) {
+                int tIndex = HEADER_SIZE + (iBitLength >>> 3);
+                int tMask = 0x80 >>> (iBitLength & 7);
+                int tByte = iBuffer.get(tIndex);
+                //clear too: the bytes past a torn commit hold garbage
+                iBuffer.put(tIndex, (byte) (((aValue >>> i) & 1) != 0 ? tByte | tMask : tByte & ~tMask));
+                iBitLength++;
+            }
+        }
+
+        long readBits(ByteBuffer aBuffer, int aBits) {
+            long tValue = 0;
+            for (int i = 0; i < aBits; i++) {
+                int tByte = aBuffer.get(HEADER_SIZE + (iReadBits >>> 3));
+                tValue = (tValue << 1) | ((tByte >>> (7 - (iReadBits & 7))) & 1);
+                iReadBits++;
+            }
+            return tValue;
+        }
+    }
+
+    /**
+     * Gorilla style compression state, the same for writing and reading.
+     */
+    private static final class Codec {
+
+        int iCount = 0;
+        long iPrevTime;
+        long iPrevDelta;
+        int iPrevValue;
+        int iPrevFlags;
+        int iPrevLeading = -1;
+        int iPrevTrailing;
+
+        void encode(Segment aOut, long aTime, int aValue, int aFlags) {
+            if (iCount == 0) {
+                aOut.writeBits(aTime, 64);
+                aOut.writeBits(aValue, 32);
+                aOut.writeBits(aFlags, 8);
+            } else {
+                long tDelta = aTime - iPrevTime;
+                long tDoD = tDelta - iPrevDelta;
+                if (tDoD == 0) {
+                    aOut.writeBits(0, 1);
+                } else if (tDoD >= -63 && tDoD <= 64) {
+                    aOut.writeBits(0x2, 2);
+                    aOut.writeBits(tDoD + 63, 7);
+                } else if (tDoD >= -255 && tDoD <= 256) {
+                    aOut.writeBits(0x6, 3);
+                    aOut.writeBits(tDoD + 255, 9);
+                } else if (tDoD >= -2047 && tDoD <= 2048) {
+                    aOut.writeBits(0xE, 4);
+                    aOut.writeBits(tDoD + 2047, 12);
+                } else {
+                    aOut.writeBits(0xF, 4);
+                    aOut.writeBits(tDoD, 64);
+                }
+                iPrevDelta = tDelta;
+                int tXor = aValue ^ iPrevValue;
+                if (tXor == 0) {
+                    aOut.writeBits(0, 1);
+                } else {
+                    int tLeading = Integer.numberOfLeadingZeros(tXor);
+                    int tTrailing = Integer.numberOfTrailingZeros(tXor);
+                    if (iPrevLeading >= 0 && tLeading >= iPrevLeading && tTrailing >= iPrevTrailing) {
+                        //fits in the previous meaningful bits
+                        aOut.writeBits(0x2, 2);
+                        aOut.writeBits(tXor >>> iPrevTrailing, 32 - iPrevLeading - iPrevTrailing);
+                    } else {
+                        int tSignificant = 32 - tLeading - tTrailing;
+                        aOut.writeBits(0x3, 2);
+                        aOut.writeBits(tLeading, 5);
+                        aOut.writeBits(tSignificant - 1, 5);
+                        aOut.writeBits(tXor >>> tTrailing, tSignificant);
+                        iPrevLeading = tLeading;
+                        iPrevTrailing = tTrailing;
+                    }
+                }
+                if (aFlags == iPrevFlags) {
+                    aOut.writeBits(0, 1);
+                } else {
+                    aOut.writeBits(1, 1);
+                    aOut.writeBits(aFlags, 8);
+                }
+            }
+            iPrevTime = aTime;
+            iPrevValue = aValue;
+            iPrevFlags = aFlags;
+            iCount++;
+        }
+
+        void decode(ByteBuffer aBuffer, Segment aIn) {
+            if (iCount == 0) {
+                iPrevTime = aIn.readBits(aBuffer, 64);
+                iPrevValue = (int) aIn.readBits(aBuffer, 32);
+                iPrevFlags = (int) aIn.readBits(aBuffer, 8);
+                iCount++;
+                return;
+            }
+            long tDoD;
+            if (aIn.readBits(aBuffer, 1) == 0) {
+                tDoD = 0;
+            } else if (aIn.readBits(aBuffer, 1) == 0) {
+                tDoD = aIn.readBits(aBuffer, 7) - 63;
+            } else if (aIn.readBits(aBuffer, 1) == 0) {
+                tDoD = aIn.readBits(aBuffer, 9) - 255;
+            } else if (aIn.readBits(aBuffer, 1) == 0) {
+                tDoD = aIn.readBits(aBuffer, 12) - 2047;
+            } else {
+                tDoD = aIn.readBits(aBuffer, 64);
+            }
+            iPrevDelta += tDoD;
+            iPrevTime += iPrevDelta;
+            if (aIn.readBits(aBuffer, 1) != 0) {
+                int tXor;
+                if (aIn.readBits(aBuffer, 1) == 0) {
+                    tXor = (int) aIn.readBits(aBuffer, 32 - iPrevLeading - iPrevTrailing) << iPrevTrailing;
+                } else {
+                    int tLeading = (int) aIn.readBits(aBuffer, 5);
+                    int tSignificant = (int) aIn.readBits(aBuffer, 5) + 1;
+                    iPrevLeading = tLeading;
+                    iPrevTrailing = 32 - tLeading - tSignificant;
+                    tXor = (int) aIn.readBits(aBuffer, tSignificant) << iPrevTrailing;
+                }
+                iPrevValue ^= tXor;
+            }
+            if (aIn.readBits(aBuffer, 1) != 0) {
+                iPrevFlags = (int) aIn.readBits(aBuffer, 8);
+            }
+            iCount++;
+        }
+    }
+
+    /**
+     * The slot with the highest sequence whose own CRC and data CRC match,
+     * -1 if none.
+     */
+    private static int newestValidSlot(ByteBuffer aBuffer) {
+        int tBest = -1;
+        for (int tSlot : new int[]{SLOT_A, SLOT_B}) {
+            if (aBuffer.getInt(tSlot + 16) != ~crc(aBuffer, tSlot, 16, -1)) {
+                continue;
+            }
+            int tBits = aBuffer.getInt(tSlot + 8);
+            if (tBits < 0 || tBits > DATA_BITS) {
+                continue;
+            }
+            int tCrc = crc(aBuffer, HEADER_SIZE, tBits >>> 3, -1);
+            if (aBuffer.getInt(tSlot + 12) != dataCrc(aBuffer, tBits, tCrc)) {
+                continue;
+            }
+            if (tBest < 0 || aBuffer.getInt(tSlot) - aBuffer.getInt(tBest) > 0) {
+                tBest = tSlot;
+            }
+        }
+        return tBest;
+    }
+
+    /**
+     * aCrc, the register over the complete bytes, plus the written bits of
+     * the last partial byte.
+     */
+    private static int dataCrc(ByteBuffer aBuffer, int aBits, int aCrc) {
+        int tPartial = aBits & 7;
+        if (tPartial != 0) {
+            int tByte = aBuffer.get(HEADER_SIZE + (aBits >>> 3)) & (0xFF << (8 - tPartial)) & 0xFF;
+            aCrc = CRC_TABLE[(aCrc ^ tByte) & 0xFF] ^ (aCrc >>> 8);
+        }
+        return ~aCrc;
+    }
+
+    /**
+     * CRC32 register aCrc updated with aLength bytes from aOffset.
+     */
+    private static int crc(ByteBuffer aBuffer, int aOffset, int aLength, int aCrc) {
+        for (int i = aOffset; i < aOffset + aLength; i++) {
+            aCrc = CRC_TABLE[(aCrc ^ aBuffer.get(i)) & 0xFF] ^ (aCrc >>> 8);
+        }
+        return aCrc;
+    }
+
+    private static File segmentFile(File aDirectory, long aSequence) {
+        return new File(aDirectory, PREFIX + String.format("%08d", aSequence) + SUFFIX);
+    }
+
+    private static long[] segments(File aDirectory) {
+        String[] tNames = aDirectory.list();
+        if (tNames == null) {
+            return new long[0];
+        }
+        long[] tSequences = new long[tNames.length];
+        int n = 0;
+        for (String tName : tNames) {
+            if (tName.startsWith(PREFIX) && tName.endsWith(SUFFIX)) {
+                long tSequence;
+                try {
+                    tSequence = Long.parseLong(tName.substring(PREFIX.length(), tName.length() - SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    //not ours
+                    continue;
+                }
+                //only the names segmentFile() makes, so the file can be opened again
+                if (tSequence >= 0 && segmentFile(aDirectory, tSequence).getName().equals(tName)) {
+                    tSequences[n++] = tSequence;
+                }
+            }
+        }
+        tSequences = Arrays.copyOf(tSequences, n);
+        Arrays.sort(tSequences);
+        return tSequences;
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DS18B20 1-wire sensors read through the w1 kernel driver, from
+ * /sys/bus/w1/devices/28-xxxx/w1_slave. A conversion takes about 750ms per
+ * sensor, so all sensors convert at once: with a bus master offering
+ * therm_bulk_read one "trigger" starts them all, otherwise the w1_slave
+ * files are read in parallel. Sampling runs every SAMPLE_PERIOD on its own
+ * thread and the readings are published as an immutable snapshot, so
+ * getTemperature() never waits for the bus.
+ *
+ * @author Ste
+ */
+public class TemperatureSensors {
+
+    public static final File W1_DEVICES = new File("/sys/bus/w1/devices");
+
+    static final long SAMPLE_PERIOD = 10000;
+    //a reading older than this is not used
+    static final long MAX_AGE = 3 * SAMPLE_PERIOD;
+    static final long CONVERSION_TIMEOUT = 2000;
+
+    //DS18B20 family code
+    private static final String FAMILY_PREFIX = "28-";
+    //what a DS18B20 reads before its first conversion
+    private static final int POWER_ON_RESET = 85000;
+    static final int NO_READING = Integer.MIN_VALUE;
+
+    private final File iDevices;
+    private final long iSamplePeriod;
+    private ScheduledExecutorService iScheduler;
+    private ExecutorService iReaders;
+    private volatile Snapshot iSnapshot = new Snapshot(new String[0], new int[0], 0);
+
+    /**
+     * The readings of one sampling, in millidegrees Celsius, NO_READING for a
+     * sensor that failed.
+     */
+    private static final class Snapshot {
+
+        final String[] iIds;
+        final int[] iMilliCelsius;
+        final long iTime;
+
+        Snapshot(String[] aIds, int[] aMilliCelsius, long aTime) {
+            iIds = aIds;
+            iMilliCelsius = aMilliCelsius;
+            iTime = aTime;
+        }
+    }
+
+    public TemperatureSensors() {
+        this(W1_DEVICES, SAMPLE_PERIOD);
+    }
+
+    /**
+     * aDevices can be a directory of fake sensors.
+     */
+    public TemperatureSensors(File aDevices, long aSamplePeriod) {
+        iDevices = aDevices;
+        iSamplePeriod = aSamplePeriod;
+    }
+
+    public synchronized void start() {
+        if (iScheduler != null) {
+            return;
+        }
+        iScheduler = Executors.newSingleThreadScheduledExecutor(daemon("TemperatureSensors"));
+        iReaders = Executors.newCachedThreadPool(daemon("TemperatureSensors reader"));
+        iScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sample();
+                } catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 0, iSamplePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (iScheduler != null) {
+            iScheduler.shutdownNow();
+            iReaders.shutdownNow();
+            iScheduler = null;
+            iReaders = null;
+        }
+    }
+
+    /**
+     * Converts and reads all sensors once, then publishes the readings.
+     */
+    void sample() {
+        File[] tSensors = iDevices.listFiles();
+        List<String> tIds = new ArrayList<String>();
+        if (tSensors != null) {
+            for (File tSensor : tSensors) {
+                if (tSensor.getName().startsWith(FAMILY_PREFIX) && new File(tSensor, "w1_slave").exists()) {
+                    tIds.add(tSensor.getName());
+                }
+            }
+        }
+        Collections.sort(tIds);
+        String[] tIdArray = tIds.toArray(new String[tIds.size()]);
+        int[] tReadings = new int[tIdArray.length];
+        Arrays.fill(tReadings, NO_READING);
+        if (tIdArray.length > 0) {
+            if (bulkConvert()) {
+                for (int i = 0; i < tIdArray.length; i++) {
+                    tReadings[i] = read(tIdArray[i]);
+                }
+            } else {
+                readInParallel(tIdArray, tReadings);
+            }
+        }
+        iSnapshot = new Snapshot(tIdArray, tReadings, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts a conversion on all sensors of every bus master offering
+     * therm_bulk_read and waits for them. Returns false if there is none:
+     * then each w1_slave read converts by itself.
+     */
+    private boolean bulkConvert() {
+        File[] tMasters = iDevices.listFiles();
+        List<File> tBulkFiles = new ArrayList<File>();
+        if (tMasters != null) {
+            for (File tMaster : tMasters) {
+                File tBulk = new File(tMaster, "therm_bulk_read");
+                if (tMaster.getName().startsWith("w1_bus_master") && tBulk.exists()) {
+                    tBulkFiles.add(tBulk);
+                }
+            }
+        }
+        if (tBulkFiles.isEmpty()) {
+            return false;
+        }
+        try {
+            for (File tBulk : tBulkFiles) {
+                try (Writer tOut = new FileWriter(tBulk)) {
+                    tOut.write("trigger\n");
+                }
+            }
+            //-1 while converting, 1 when the data is ready
+            long tDeadline = System.currentTimeMillis() + CONVERSION_TIMEOUT;
+            for (File tBulk : tBulkFiles) {
+                while (firstLine(tBulk).trim().equals("-1") && System.currentTimeMillis() < tDeadline) {
+                    Thread.sleep(50);
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            System.out.println("TemperatureSensors: bulk conversion failed: " + ex.getMessage());
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    private void readInParallel(final String[] aIds, int[] aReadings) {
+        List<Future<Integer>> tFutures = new ArrayList<Future<Integer>>(aIds.length);
+        for (final String tId : aIds) {
+            tFutures.add(iReaders.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return read(tId);
+                }
+            }));
+        }
+        for (int i = 0; i < aIds.length; i++) {
+            try {
+                aReadings[i] = tFutures.get(i).get(CONVERSION_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (Exception ex) {
+                tFutures.get(i).cancel(true);
+                System.out.println("TemperatureSensors: no reading from " + aIds[i] + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Millidegrees from the w1_slave file, e.g.
+     * "72 01 4b 46 7f ff 0e 10 57 : crc=57 YES"
+     * "72 01 4b 46 7f ff 0e 10 57 t=23125",
+     * NO_READING if the CRC failed or the sensor did not convert.
+     */
+    int read(String aId) {
+        try (BufferedReader tIn = new BufferedReader(new FileReader(new File(new File(iDevices, aId), "w1_slave")))) {
+            return parse(tIn.readLine(), tIn.readLine());
+        } catch (IOException ex) {
+            System.out.println("TemperatureSensors: cannot read " + aId + ": " + ex.getMessage());
+            return NO_READING;
+        }
+    }
+
+    static int parse(String aCRCLine, String aDataLine) {
+        if (aCRCLine == null || aDataLine == null || !aCRCLine.trim().endsWith("YES")) {
+            return NO_READING;
+        }
+        int tStart = aDataLine.indexOf("t=");
+        if (tStart < 0) {
+            return NO_READING;
+        }
+        try {
+            int tValue = Integer.parseInt(aDataLine.substring(tStart + 2).trim());
+            return tValue == POWER_ON_RESET ? NO_READING : tValue;
+        } catch (NumberFormatException ex) {
+            return NO_READING;
+        }
+    }
+
+    /**
+     * Average of the sensors read in the last sampling, in degrees Celsius,
+     * NaN if there is no recent reading. Never blocks.
+     */
+    public double getTemperature() {
+        Snapshot tSnapshot = iSnapshot;
+        if (System.currentTimeMillis() - tSnapshot.iTime > MAX_AGE) {
+            return Double.NaN;
+        }
+        long tSum = 0;
+        int tCount = 0;
+        for (int tReading : tSnapshot.iMilliCelsius) {
+            if (tReading != NO_READING) {
+                tSum += tReading;
+                tCount++;
+            }
+        }
+        return tCount == 0 ? Double.NaN : tSum / (tCount * 1000.0);
+    }
+
+    /**
+     * Degrees Celsius of sensor aId, NaN if there is no recent reading.
+     */
+    public double getTemperature(String aId) {
+        Snapshot tSnapshot = iSnapshot;
+        if (System.currentTimeMillis() - tSnapshot.iTime > MAX_AGE) {
+            return Double.NaN;
+        }
+        for (int i = 0; i < tSnapshot.iIds.length; i++) {
+            if (tSnapshot.iIds[i].equals(aId) && tSnapshot.iMilliCelsius[i] != NO_READING) {
+                return tSnapshot.iMilliCelsius[i] / 1000.0;
+            }
+        }
+        return Double.NaN;
+    }
+
+    public List<String> getSensorIds() {
+        return Collections.unmodifiableList(Arrays.asList(iSnapshot.iIds));
+    }
+
+    public long getLastSampleTime() {
+        return iSnapshot.iTime;
+    }
+
+    private static String firstLine(File aFile) throws IOException {
+        try (BufferedReader tIn = new BufferedReader(new FileReader(aFile))) {
+            String tLine = tIn.readLine();
+            return tLine == null ? "" : tLine;
+        }
+    }
+
+    private static ThreadFactory daemon(final String aName) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable aRunnable) {
+                Thread tThread = new Thread(aRunnable, aName);
+                tThread.setDaemon(true);
+                return tThread;
+            }
+        };
+    }
+
+}
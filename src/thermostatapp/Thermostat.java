@@ -5,12 +5,14 @@
  */
 package thermostatapp;
 
+import java.io.File;
 import java.io.IOException;
 import static java.lang.Thread.sleep;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 import jdk.dio.gpio.GPIOPin;
@@ -22,7 +24,7 @@ import jdk.dio.gpio.PinListener;
  *
  * @author Ste
  */
-public class Thermostat implements PinListener {
+public class Thermostat implements PinListener, SMSListener, TransitionListener {
 
     private Led iStatusLED;
     private Relay iHeaterRelay;
@@ -33,13 +35,37 @@ public class Thermostat implements PinListener {
     private Button iManualTherostat;
     private Controller iController;
     private SMSGateway iSMSGateway;
+    private SMSOutbox iSMSOutbox;
 
     public static boolean ON = true;
     public static boolean OFF = false;
 
     private boolean bouncing = false;
 
+    //new messages are pushed via +CMTI, the poll only catches missed ones
+    private static final int RECONCILIATION_PERIOD = 5 * 60 * 1000;
+
+    private static final String OUTBOX_FILE = "outbox.txt";
+    private static final String TELEMETRY_DIRECTORY = "telemetry";
+    private static final String PROGRAM_FILE = "program.txt";
+    private static final String USERS_FILE = "users.txt";
+    private static final String STATE_JOURNAL_FILE = "state.journal";
+    private static final String STATE_SNAPSHOT_FILE = "state.snapshot";
+
+    //-Dheating.algorithm=pid for time-proportioning instead of hysteresis in AUTO
+    private static final String HEATING_ALGORITHM_PROPERTY = "heating.algorithm";
+
     Timer timer;
+    private volatile boolean iDeleteReadMessages = false;
+    private final ProcessedSMSCache iProcessedSMSs = new ProcessedSMSCache();
+    private TemperatureSensors iTemperatureSensors;
+    private HeatingControl iHeatingControl;
+    private final TimeSeries iTimeSeries = new TimeSeries();
+    private final TimeSeries.Summary iStatusSummary = new TimeSeries.Summary();
+    private Timer iTelemetryTimer;
+    private volatile TelemetryLog iTelemetryLog;
+    private WeeklyProgram iWeeklyProgram;
+    private StateJournal iStateJournal;
 
     public Thermostat(int aModeButtonPortID, int aModeButtonPinID, int aManualThermostatPortID, int aManualThermostatPinID, int aStatusLEDPinNumber, int aGreenLEDPinNumber, int aYellowLEDPinNumber, int aRedLEDPinNumber, int aHeaterRELAYPinNumber) {
         try {
@@ -50,13 +76,58 @@ public class Thermostat implements PinListener {
             iHeaterRelay = new Relay(aHeaterRELAYPinNumber);
             iModeButton = new Button(aModeButtonPortID, aModeButtonPinID);
             iModeButton.setInputListener(this);
-            iController = new Controller(iStatusLED, iGreenLED, iYellowLED, iRedLED, iHeaterRelay);
+            //restores the state before the power cut, before the modem and the schedulers
+            iStateJournal = new StateJournal(new File(STATE_JOURNAL_FILE), new File(STATE_SNAPSHOT_FILE));
+            iController = new Controller(iStatusLED, iGreenLED, iYellowLED, iRedLED, iHeaterRelay, iStateJournal);
             iManualTherostat = new Button(aManualThermostatPortID, aManualThermostatPinID);
             iManualTherostat.getPin().setTrigger(GPIOPinConfig.TRIGGER_BOTH_EDGES);
             iManualTherostat.setInputListener(this);
+            //the switch may have moved while the power was off
+            if (iManualTherostat.getPin().getValue() == ON) {
+                iController.activateManualThermostat();
+            } else {
+                iController.deActivateManualThermostat();
+            }
+            //raise the heat request of the restored state without waiting for the modem
+            iTemperatureSensors = new TemperatureSensors();
+            iTemperatureSensors.start();
+            iHeatingControl = new HeatingControl(iController, iTemperatureSensors);
+            if ("pid".equalsIgnoreCase(System.getProperty(HEATING_ALGORITHM_PROPERTY))) {
+                iHeatingControl.setAlgorithm(HeatingControl.Algorithm.PID);
+            }
+            iHeatingControl.start();
+            iTelemetryLog = new TelemetryLog(new File(TELEMETRY_DIRECTORY));
+            try {
+                iTelemetryLog.open();
+            } catch (IOException ex) {
+                System.out.println("Telemetry not persisted: " + ex.getMessage());
+                iTelemetryLog = null;
+            }
+            iController.setTransitionListener(this);
+            iWeeklyProgram = new WeeklyProgram(iController, new File(PROGRAM_FILE));
+            iWeeklyProgram.start(iStateJournal.getRecoveredTime());
+            iTelemetryTimer = new Timer("Telemetry", true);
+            iTelemetryTimer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    long tNow = System.currentTimeMillis();
+                    double tTemperature = iTemperatureSensors.getTemperature();
+                    iTimeSeries.record(tNow, tTemperature, iController.isHeating(), iController.getState());
+                    TelemetryLog tLog = iTelemetryLog;
+                    if (tLog != null) {
+                        tLog.logSample(tNow, tTemperature, iController.isHeating(), iController.getState());
+                    }
+                }
+            }, TimeSeries.SAMPLE_PERIOD, TimeSeries.SAMPLE_PERIOD);
+            //the heating runs on its own: the modem may take long or never come up
+            AuthorizedUsers.load(new File(USERS_FILE));
             //iSMSGateway.getInstance();
             iSMSGateway = new SMSGateway();
+            iSMSGateway.setSMSListener(this);
+            iSMSGateway.setPDUMode(true);
             iSMSGateway.initialize();
+            iSMSOutbox = new SMSOutbox(iSMSGateway, new File(OUTBOX_FILE));
+            iSMSOutbox.start();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -108,31 +179,154 @@ public class Thermostat implements PinListener {
     }
 
     public void startPollingIncomingCommands(boolean aDeleteReadMessages) {
+        iDeleteReadMessages = aDeleteReadMessages;
         timer = new Timer();
-        //every 30 seconds
+        //every 5 minutes
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
-                List<SMS> tSMSs = iSMSGateway.getAllMessages();
-                Collections.sort(tSMSs);
-                Collections.reverse(tSMSs);
-                System.out.println("List of all messages on the modem ordered by date:");
+                List<SMS> tSMSs = iSMSGateway.getUnreadMessages();
+                List<SMS> tNewSMSs = new ArrayList<SMS>();
                 for (SMS tSMS : tSMSs) {
+                    if (!iProcessedSMSs.isProcessed(tSMS)) {
+                        tNewSMSs.add(tSMS);
+                    }
+                }
+                Collections.sort(tNewSMSs);
+                Collections.reverse(tNewSMSs);
+                System.out.println("List of new messages on the modem ordered by date:");
+                for (SMS tSMS : tNewSMSs) {
                     System.out.println(tSMS);
                 }
-                for (SMS tSMS : tSMSs) {
-                    if (tSMS.isDateValid() && tSMS.senderAuthorized()) {
-                        System.out.println("SMS Valid & Authorized: -------> "+tSMS);
-                        iController.executeCommand(tSMS);
-                        //execute only last command
+                processIncomingCommands(tNewSMSs);
+                if (iDeleteReadMessages) {
+                    //executed or discarded, they are not needed anymore
+                    iSMSGateway.deleteMessages(tSMSs);
+                }
+                iSMSGateway.checkStorage();
+                try {
+                    iController.verifyOutputs();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, 0, RECONCILIATION_PERIOD);
+    }
+
+    @Override
+    public void smsReceived(SMS aSMS) {
+        System.out.println("New message on the modem: " + aSMS);
+        if (iProcessedSMSs.isProcessed(aSMS)) {
+            System.out.println("SMS already processed: " + aSMS);
+        } else {
+            processIncomingCommands(Collections.singletonList(aSMS));
+        }
+        if (iDeleteReadMessages) {
+            iSMSGateway.deleteMessage(aSMS.getPosition());
+        }
+    }
+
+    /**
+     * Executes the first valid and authorized command of aSMSs, newest first.
+     * Called from the reconciliation poll and the +CMTI dispatcher. All of
+     * aSMSs are marked as processed: the older ones are superseded.
+     */
+    private synchronized void processIncomingCommands(List<SMS> aSMSs) {
+        for (SMS tSMS : aSMSs) {
+            iProcessedSMSs.markProcessed(tSMS);
+        }
+        for (SMS tSMS : aSMSs) {
+            if (tSMS.isDateValid() && tSMS.senderAuthorized()) {
+                System.out.println("SMS Valid & Authorized: -------> "+tSMS);
+                NetworkMonitor tNetworkMonitor = iSMSGateway.getNetworkMonitor();
+                if (tNetworkMonitor != null) {
+                    tNetworkMonitor.commandReceived(tSMS.getTimestamp());
+                }
+                ParsedCommand tParsed = Interpreter.getInstance().parse(tSMS);
+                Command tCommand = iController.executeCommand(tParsed);
+                switch (tCommand) {
+                    case PROGRAM_HOUR:
+                    case PROGRAM_WEEK:
+                    case PROGRAM_OFF:
+                        program(tParsed);
+                        break;
+                    case REGISTER_NUMBER:
+                        String tNumber = tParsed.getPhoneNumber();
+                        if (iSMSOutbox != null) {
+                            iSMSOutbox.send(tSMS.getSender(), AuthorizedUsers.register(tNumber) ? "Registered " + tNumber : tNumber + " already registered");
+                        }
+                        break;
+                    case NOT_VALID:
+                        if (iSMSOutbox != null) {
+                            iSMSOutbox.send(tSMS.getSender(), tParsed.getErrorMessage() + ". Send help for the commands");
+                        }
+                        break;
+                    default:
                         break;
-                    } else {
-                        System.out.println("SMS discarded: "+tSMS);
-                    }
                 }
-                //TODO and then erase every SMS
+                reply(tSMS.getSender(), tCommand);
+                //execute only last command
+                break;
+            } else {
+                System.out.println("SMS discarded: "+tSMS);
             }
-        }, 0, 30 * 1000);
+        }
+    }
+
+    /**
+     * Changes the WeeklyProgram as aCommand says.
+     */
+    private void program(ParsedCommand aCommand) {
+        if (iWeeklyProgram == null) {
+            return;
+        }
+        if (aCommand.getCommand() == Command.PROGRAM_OFF) {
+            iWeeklyProgram.clear();
+            return;
+        }
+        try {
+            iWeeklyProgram.add(aCommand.getEntry());
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Program not changed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Answers the sender through the outbox, never blocking the caller.
+     */
+    private void reply(String aRecipient, Command aCommand) {
+        if (iSMSOutbox == null) {
+            return;
+        }
+        switch (aCommand) {
+            case ON:
+            case OFF:
+            case MANUAL:
+            case AUTO:
+            case STATUS:
+                //a newer status supersedes one not sent yet
+                iSMSOutbox.send(aRecipient, getStatus(), SMSOutbox.KEY_STATUS);
+                break;
+            case PROGRAM_HOUR:
+            case PROGRAM_WEEK:
+            case PROGRAM_OFF:
+                iSMSOutbox.send(aRecipient, iWeeklyProgram.describe());
+                break;
+            case HELP:
+                iSMSOutbox.send(aRecipient, "Commands: on, off, manual, auto [temp], status, help, program [days] hh:mm mode [temp], program off, register +number");
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void transition(long aTime, Controller.State aFrom, Controller.State aTo) {
+        iTimeSeries.recordTransition(aTime, aFrom.isHeating() != aTo.isHeating(), aFrom.iMode != aTo.iMode);
+        TelemetryLog tLog = iTelemetryLog;
+        if (tLog != null) {
+            tLog.logTransition(aTime, aTo.isHeating(), aTo.iMode);
+        }
     }
 
     @Override
@@ -185,6 +379,25 @@ public class Thermostat implements PinListener {
         StringBuffer tResponse = new StringBuffer();
         tResponse.append("Running since: " + ThermostatApp.iRunningSince + "\n");
         tResponse.append("State: " + iController.getState() + "\n");
+        if (iController.getState() == Status.AUTO) {
+            tResponse.append(String.format(Locale.ROOT, "Target: %.1f C%s\n", iController.getTarget(), iController.isHeating() ? ", heating" : ""));
+        }
+        double tTemperature = iTemperatureSensors == null ? Double.NaN : iTemperatureSensors.getTemperature();
+        if (!Double.isNaN(tTemperature)) {
+            tResponse.append(String.format(Locale.ROOT, "Temperature: %.1f C\n", tTemperature));
+        }
+        synchronized (iStatusSummary) {
+            iTimeSeries.summarizeLast(TimeSeries.DAY, iStatusSummary);
+            if (iStatusSummary.getCount() > 0) {
+                tResponse.append(String.format(Locale.ROOT, "24h: %.1f-%.1f C, avg %.1f, heating %d%%\n",
+                        iStatusSummary.getMin(), iStatusSummary.getMax(), iStatusSummary.getAverage(),
+                        Math.round(iStatusSummary.getHeatingFraction() * 100)));
+            }
+        }
+        NetworkMonitor tNetworkMonitor = iSMSGateway == null ? null : iSMSGateway.getNetworkMonitor();
+        if (tNetworkMonitor != null) {
+            tResponse.append(tNetworkMonitor.getSummary());
+        }
         return tResponse.toString();
     }
 
@@ -194,6 +407,26 @@ public class Thermostat implements PinListener {
                 timer.cancel();
                 timer = null;
             }
+            if (iWeeklyProgram != null) {
+                iWeeklyProgram.stop();
+                iWeeklyProgram = null;
+            }
+            if (iTelemetryTimer != null) {
+                iTelemetryTimer.cancel();
+                iTelemetryTimer = null;
+            }
+            if (iTelemetryLog != null) {
+                iTelemetryLog.close();
+                iTelemetryLog = null;
+            }
+            if (iHeatingControl != null) {
+                iHeatingControl.stop();
+                iHeatingControl = null;
+            }
+            if (iTemperatureSensors != null) {
+                iTemperatureSensors.stop();
+                iTemperatureSensors = null;
+            }
             if (iStatusLED != null) {
                 iStatusLED.close();
                 iStatusLED = null;
@@ -224,6 +457,10 @@ public class Thermostat implements PinListener {
                 iManualTherostat.close();
                 iManualTherostat = null;
             }
+            if (iSMSOutbox != null) {
+                iSMSOutbox.stop();
+                iSMSOutbox = null;
+            }
             if (iSMSGateway != null) {
                 iSMSGateway.stop();
                 iSMSGateway = null;
@@ -231,6 +468,10 @@ public class Thermostat implements PinListener {
             if (iController != null) {
                 iController = null;
             }
+            if (iStateJournal != null) {
+                iStateJournal.close();
+                iStateJournal = null;
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -59,7 +59,7 @@ public class ThermostatApp {
         //System.out.println("---> Reading all messages: "+iThermostat.testReadAllMessagesRaw());
         //iThermostat.testReadAllMessages();
         //iThermostat.testReadAllMessagesOneByOne();
-        iThermostat.startPollingIncomingCommands(false);
+        iThermostat.startPollingIncomingCommands(true);
         //for (int i = 0; i < 10; i++){
         //    System.out.println(iThermostat.getStatus());
         //    whaitABit(5000);
@@ -0,0 +1,286 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size history of temperature, heating and mode, in primitive arrays
+ * only. Samples go into a raw ring (the last RAW_CAPACITY) and, on insert,
+ * into per-minute, per-hour and per-day rollup rings keeping count, min,
+ * max, sum, heating samples, relay switches and mode changes. A window is
+ * summarized from the finest rollup still holding all of it, in
+ * O(buckets) and into a caller owned Summary, so neither inserting nor
+ * querying allocates.
+ *
+ * @author Ste
+ */
+public class TimeSeries {
+
+    public static final long SAMPLE_PERIOD = 10000;
+    //a day of samples
+    static final int RAW_CAPACITY = 8640;
+
+    public static final long MINUTE = 60 * 1000;
+    public static final long HOUR = 60 * MINUTE;
+    public static final long DAY = 24 * HOUR;
+
+    static final int NO_TEMPERATURE = Integer.MIN_VALUE;
+
+    private final long[] iRawTime = new long[RAW_CAPACITY];
+    private final int[] iRawMilliCelsius = new int[RAW_CAPACITY];
+    //mode ordinal, plus HEATING_FLAG
+    private final byte[] iRawState = new byte[RAW_CAPACITY];
+    private static final int HEATING_FLAG = 0x80;
+    private int iRawNext = 0;
+    private int iRawCount = 0;
+
+    //one bucket more than the span: the newest is only partly filled, so a
+    //whole day back from now still starts inside the ring
+    private final Rollup iMinutes = new Rollup(MINUTE, 24 * 60 + 1);
+    private final Rollup iHours = new Rollup(HOUR, 7 * 24 + 1);
+    private final Rollup iDays = new Rollup(DAY, 366);
+
+    /**
+     * Aggregates of a window, filled by summarize().
+     */
+    public static final class Summary {
+
+        //all samples, also those without a temperature
+        int iSamples;
+        int iCount;
+        int iMin;
+        int iMax;
+        long iSum;
+        int iHeating;
+        int iRelaySwitches;
+        int iModeChanges;
+
+        void clear() {
+            iSamples = 0;
+            iCount = 0;
+            iMin = Integer.MAX_VALUE;
+            iMax = Integer.MIN_VALUE;
+            iSum = 0;
+            iHeating = 0;
+            iRelaySwitches = 0;
+            iModeChanges = 0;
+        }
+
+        public int getCount() {
+            return iCount;
+        }
+
+        public double getMin() {
+            return iCount == 0 ? Double.NaN : iMin / 1000.0;
+        }
+
+        public double getMax() {
+            return iCount == 0 ? Double.NaN : iMax / 1000.0;
+        }
+
+        public double getAverage() {
+            return iCount == 0 ? Double.NaN : iSum / (iCount * 1000.0);
+        }
+
+        /**
+         * Share of the samples with the heater on, 0..1.
+         */
+        public double getHeatingFraction() {
+            return iSamples == 0 ? Double.NaN : iHeating / (double) iSamples;
+        }
+
+        public int getRelaySwitches() {
+            return iRelaySwitches;
+        }
+
+        public int getModeChanges() {
+            return iModeChanges;
+        }
+    }
+
+    /**
+     * Ring of buckets of iWidth ms, a bucket is reused when its time comes
+     * round again.
+     */
+    private static final class Rollup {
+
+        final long iWidth;
+        final int iCapacity;
+        final long[] iStart;
+        final int[] iSamples;
+        final int[] iCount;
+        final int[] iMin;
+        final int[] iMax;
+        final long[] iSum;
+        final int[] iHeating;
+        final short[] iRelaySwitches;
+        final short[] iModeChanges;
+        //start of the newest bucket written, the ring reaches back from there
+        long iNewest = Long.MIN_VALUE;
+
+        Rollup(long aWidth, int aCapacity) {
+            iWidth = aWidth;
+            iCapacity = aCapacity;
+            iStart = new long[aCapacity];
+            iSamples = new int[aCapacity];
+            iCount = new int[aCapacity];
+            iMin = new int[aCapacity];
+            iMax = new int[aCapacity];
+            iSum = new long[aCapacity];
+            iHeating = new int[aCapacity];
+            iRelaySwitches = new short[aCapacity];
+            iModeChanges = new short[aCapacity];
+            Arrays.fill(iStart, Long.MIN_VALUE);
+        }
+
+        /**
+         * The bucket of aTime, cleared if it held an older period.
+         */
+        int bucket(long aTime) {
+            long tStart = aTime - Math.floorMod(aTime, iWidth);
+            int i = (int) Math.floorMod(tStart / iWidth, (long) iCapacity);
+            if (iStart[i] != tStart) {
+                iStart[i] = tStart;
+                iSamples[i] = 0;
+                iCount[i] = 0;
+                iMin[i] = Integer.MAX_VALUE;
+                iMax[i] = Integer.MIN_VALUE;
+                iSum[i] = 0;
+                iHeating[i] = 0;
+                iRelaySwitches[i] = 0;
+                iModeChanges[i] = 0;
+                iNewest = Math.max(iNewest, tStart);
+            }
+            return i;
+        }
+
+        void add(long aTime, int aMilliCelsius, boolean aHeating) {
+            int i = bucket(aTime);
+            iSamples[i]++;
+            if (aHeating) {
+                iHeating[i]++;
+            }
+            if (aMilliCelsius != NO_TEMPERATURE) {
+                iCount[i]++;
+                iSum[i] += aMilliCelsius;
+                iMin[i] = Math.min(iMin[i], aMilliCelsius);
+                iMax[i] = Math.max(iMax[i], aMilliCelsius);
+            }
+        }
+
+        void event(long aTime, boolean aRelaySwitch, boolean aModeChange) {
+            int i = bucket(aTime);
+            if (aRelaySwitch && iRelaySwitches[i] < Short.MAX_VALUE) {
+                iRelaySwitches[i]++;
+            }
+            if (aModeChange && iModeChanges[i] < Short.MAX_VALUE) {
+                iModeChanges[i]++;
+            }
+        }
+
+        /**
+         * Whether the ring still holds all of [aFrom, aTo): aFrom must not
+         * be older than the oldest bucket kept.
+         */
+        boolean covers(long aFrom, long aTo) {
+            return iNewest == Long.MIN_VALUE || aFrom >= iNewest + iWidth - iWidth * iCapacity;
+        }
+
+        void summarize(long aFrom, long aTo, Summary aSummary) {
+            for (int i = 0; i < iCapacity; i++) {
+                long tStart = iStart[i];
+                if (tStart == Long.MIN_VALUE || tStart + iWidth <= aFrom || tStart >= aTo) {
+                    continue;
+                }
+                aSummary.iSamples += iSamples[i];
+                aSummary.iHeating += iHeating[i];
+                aSummary.iRelaySwitches += iRelaySwitches[i];
+                aSummary.iModeChanges += iModeChanges[i];
+                if (iCount[i] > 0) {
+                    aSummary.iCount += iCount[i];
+                    aSummary.iSum += iSum[i];
+                    aSummary.iMin = Math.min(aSummary.iMin, iMin[i]);
+                    aSummary.iMax = Math.max(aSummary.iMax, iMax[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A periodic sample. aTemperature in degrees Celsius, NaN if unknown.
+     */
+    public synchronized void record(long aTime, double aTemperature, boolean aHeating, Status aMode) {
+        int tMilliCelsius = Double.isNaN(aTemperature) ? NO_TEMPERATURE : (int) Math.round(aTemperature * 1000);
+        iRawTime[iRawNext] = aTime;
+        iRawMilliCelsius[iRawNext] = tMilliCelsius;
+        iRawState[iRawNext] = (byte) (aMode.ordinal() | (aHeating ? HEATING_FLAG : 0));
+        iRawNext = (iRawNext + 1) % RAW_CAPACITY;
+        if (iRawCount < RAW_CAPACITY) {
+            iRawCount++;
+        }
+        iMinutes.add(aTime, tMilliCelsius, aHeating);
+        iHours.add(aTime, tMilliCelsius, aHeating);
+        iDays.add(aTime, tMilliCelsius, aHeating);
+    }
+
+    /**
+     * A Controller transition: the relay switched and/or the mode changed.
+     */
+    public synchronized void recordTransition(long aTime, boolean aRelaySwitch, boolean aModeChange) {
+        iMinutes.event(aTime, aRelaySwitch, aModeChange);
+        iHours.event(aTime, aRelaySwitch, aModeChange);
+        iDays.event(aTime, aRelaySwitch, aModeChange);
+    }
+
+    /**
+     * Fills aSummary with [aFrom, aTo), to the resolution of the finest
+     * rollup still covering it: minutes up to a day, hours up to a week.
+     */
+    public synchronized Summary summarize(long aFrom, long aTo, Summary aSummary) {
+        aSummary.clear();
+        Rollup tRollup = iMinutes.covers(aFrom, aTo) ? iMinutes : (iHours.covers(aFrom, aTo) ? iHours : iDays);
+        tRollup.summarize(aFrom, aTo, aSummary);
+        return aSummary;
+    }
+
+    /**
+     * The last aDuration ms up to now.
+     */
+    public Summary summarizeLast(long aDuration, Summary aSummary) {
+        long tNow = System.currentTimeMillis();
+        return summarize(tNow - aDuration, tNow, aSummary);
+    }
+
+    public synchronized int getRawCount() {
+        return iRawCount;
+    }
+
+    /**
+     * Latest raw sample aAge samples back, 0 the newest: degrees Celsius or
+     * NaN.
+     */
+    public synchronized double getRawTemperature(int aAge) {
+        if (aAge < 0 || aAge >= iRawCount) {
+            return Double.NaN;
+        }
+        int tMilliCelsius = iRawMilliCelsius[Math.floorMod(iRawNext - 1 - aAge, RAW_CAPACITY)];
+        return tMilliCelsius == NO_TEMPERATURE ? Double.NaN : tMilliCelsius / 1000.0;
+    }
+
+    public synchronized long getRawTime(int aAge) {
+        if (aAge < 0 || aAge >= iRawCount) {
+            return -1;
+        }
+        return iRawTime[Math.floorMod(iRawNext - 1 - aAge, RAW_CAPACITY)];
+    }
+
+    public synchronized boolean getRawHeating(int aAge) {
+        return aAge >= 0 && aAge < iRawCount
+                && (iRawState[Math.floorMod(iRawNext - 1 - aAge, RAW_CAPACITY)] & HEATING_FLAG) != 0;
+    }
+
+}
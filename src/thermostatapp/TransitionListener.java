@@ -0,0 +1,17 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Told of every Controller transition, after the outputs are written.
+ *
+ * @author Ste
+ */
+interface TransitionListener {
+
+    void transition(long aTime, Controller.State aFrom, Controller.State aTo);
+
+}
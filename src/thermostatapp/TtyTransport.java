@@ -0,0 +1,206 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * SerialTransport over a tty device file, e.g. /dev/ttyAMA0, with no native
+ * library: the line settings are applied once with stty when the port is
+ * opened, then a reader thread does blocking bulk reads on a FileChannel
+ * into a direct buffer, one syscall per chunk. Writes go through a second
+ * channel: a FileChannel serializes read and write, a blocked read would
+ * hold every write back. What it reads is kept in an
+ * inbound buffer until the owner of the transport reads it.
+ *
+ * @author Ste
+ */
+public class TtyTransport implements SerialTransport {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int INBOUND_SIZE = 16384;
+
+    private final String iDevice;
+    private final Object iLock = new Object();
+    //kept in write mode, guarded by iLock
+    private final ByteBuffer iInbound = ByteBuffer.allocate(INBOUND_SIZE);
+    private volatile SerialReadListener iListener;
+    private volatile FileChannel iChannel;
+    private volatile FileChannel iOutChannel;
+    private Thread iReader;
+
+    public TtyTransport(String aDevice) {
+        iDevice = aDevice;
+    }
+
+    @Override
+    public synchronized void open(int aBaudRate) throws IOException {
+        close();
+        stty(aBaudRate);
+        iOutChannel = new FileOutputStream(iDevice).getChannel();
+        iChannel = new FileInputStream(iDevice).getChannel();
+        synchronized (iLock) {
+            iInbound.clear();
+        }
+        final FileChannel tChannel = iChannel;
+        iReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop(tChannel);
+            }
+        }, "TtyTransport");
+        iReader.setDaemon(true);
+        iReader.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        FileChannel tChannel = iChannel;
+        iChannel = null;
+        if (tChannel == null) {
+            return;
+        }
+        try {
+            //also wakes up the reader blocked in read()
+            tChannel.close();
+            iOutChannel.close();
+        } catch (IOException ex) {
+            System.out.println("Exception closing " + iDevice + " " + ex);
+        }
+        iOutChannel = null;
+        if (iReader != null) {
+            iReader.interrupt();
+            iReader = null;
+        }
+        synchronized (iLock) {
+            iLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        FileChannel tChannel = iChannel;
+        return tChannel != null && tChannel.isOpen();
+    }
+
+    @Override
+    public int read(ByteBuffer aBuffer) throws IOException {
+        return read(aBuffer, 0);
+    }
+
+    @Override
+    public int read(ByteBuffer aBuffer, long aTimeout) throws IOException {
+        long tDeadline = System.currentTimeMillis() + aTimeout;
+        synchronized (iLock) {
+            while (iInbound.position() == 0) {
+                if (iChannel == null) {
+                    throw new ClosedChannelException();
+                }
+                long tWait = tDeadline - System.currentTimeMillis();
+                if (tWait <= 0) {
+                    return 0;
+                }
+                try {
+                    iLock.wait(tWait);
+                } catch (InterruptedException ex) {
+                    return 0;
+                }
+            }
+            iInbound.flip();
+            int n = Math.min(iInbound.remaining(), aBuffer.remaining());
+            int tLimit = iInbound.limit();
+            iInbound.limit(iInbound.position() + n);
+            aBuffer.put(iInbound);
+            iInbound.limit(tLimit);
+            iInbound.compact();
+            //the reader may be waiting for room
+            iLock.notifyAll();
+            return n;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer aBuffer) throws IOException {
+        FileChannel tChannel = iOutChannel;
+        if (tChannel == null || iChannel == null) {
+            throw new ClosedChannelException();
+        }
+        int n = 0;
+        while (aBuffer.hasRemaining()) {
+            n += tChannel.write(aBuffer);
+        }
+        return n;
+    }
+
+    @Override
+    public void setReadListener(SerialReadListener aListener) {
+        iListener = aListener;
+    }
+
+    private void readLoop(FileChannel aChannel) {
+        ByteBuffer tChunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        try {
+            while (aChannel.isOpen()) {
+                tChunk.clear();
+                if (aChannel.read(tChunk) < 0) {
+                    break;
+                }
+                tChunk.flip();
+                synchronized (iLock) {
+                    while (tChunk.hasRemaining()) {
+                        while (!iInbound.hasRemaining()) {
+                            //nobody is reading: wait for room instead of dropping bytes
+                            iLock.wait();
+                            if (!aChannel.isOpen()) {
+                                return;
+                            }
+                        }
+                        int tLimit = tChunk.limit();
+                        tChunk.limit(tChunk.position() + Math.min(tChunk.remaining(), iInbound.remaining()));
+                        iInbound.put(tChunk);
+                        tChunk.limit(tLimit);
+                    }
+                    iLock.notifyAll();
+                }
+                SerialReadListener tListener = iListener;
+                if (tListener != null) {
+                    tListener.dataAvailable(this);
+                }
+            }
+        } catch (ClosedChannelException ex) {
+            //closed by close()
+        } catch (IOException ex) {
+            System.out.println("TtyTransport: read from " + iDevice + " failed: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            //closed by close()
+        }
+    }
+
+    /**
+     * Raw 8N1 at aBaudRate, no flow control, reads return as soon as a byte
+     * is there.
+     */
+    private void stty(int aBaudRate) throws IOException {
+        Process tProcess = new ProcessBuilder(Arrays.asList("stty", "-F", iDevice,
+                Integer.toString(aBaudRate), "raw", "-echo", "cs8", "-parenb", "-cstopb",
+                "-crtscts", "-ixon", "-ixoff", "clocal", "min", "1", "time", "0"))
+                .redirectErrorStream(true).start();
+        try {
+            if (tProcess.waitFor() != 0) {
+                throw new IOException("stty failed on " + iDevice + " at " + aBaudRate);
+            }
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted configuring " + iDevice, ex);
+        }
+    }
+
+}
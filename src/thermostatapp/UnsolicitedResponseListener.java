@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+/**
+ * Receives the unsolicited result codes (URC) read by the ATCommandExecutor,
+ * e.g. +CMTI: "SM",3. Called on the executor thread: implementations must
+ * not wait for other AT commands.
+ *
+ * @author Ste
+ */
+public interface UnsolicitedResponseListener {
+
+    void unsolicitedResponse(String aLine);
+
+}
@@ -0,0 +1,405 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package thermostatapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Weekly heating program: entries like "mon 06:30 auto 21" or "daily 22:00
+ * off" switch the Controller to their mode at that minute. The entries are
+ * compiled into a table of the 10080 minutes of the week holding the entry
+ * in force and the minutes to the next switch, so both questions are an
+ * array lookup. A single timer is armed for the absolute time of the next
+ * switch, worked out on a Calendar; it is re-armed when it fires or when
+ * the program changes. Between two switches the mode
+ * can still be changed by hand or by SMS. At start a switch missed while the
+ * power was off is applied. The entries are saved in a file.
+ *
+ * @author Ste
+ */
+public class WeeklyProgram {
+
+    static final int MINUTES_PER_DAY = 24 * 60;
+    static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    static final int MAX_ENTRIES = 64;
+
+    static final int DAILY = 0x7F;
+    static final int WEEKDAYS = 0x1F;
+    static final int WEEKEND = 0x60;
+    //bit 0 is Monday
+    static final String[] DAY_NAMES = {"mon", "tue", "wed", "thu", "fri", "sat", "sun"};
+
+    private static final byte NO_ENTRY = -1;
+
+    /**
+     * From aMinute of the days in iDays on, the Controller goes to iMode
+     * (and iTarget in AUTO).
+     */
+    public static final class Entry {
+
+        final int iDays;
+        final int iMinute;
+        final Status iMode;
+        final double iTarget;
+
+        public Entry(int aDays, int aMinute, Status aMode, double aTarget) {
+            iDays = aDays;
+            iMinute = aMinute;
+            iMode = aMode;
+            iTarget = aTarget;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder tText = new StringBuilder(dayName(iDays)).append(' ');
+            tText.append(String.format(Locale.ROOT, "%02d:%02d %s", iMinute / 60, iMinute % 60, iMode.toString().toLowerCase(Locale.ROOT)));
+            if (iMode == Status.AUTO && !Double.isNaN(iTarget)) {
+                tText.append(' ').append(iTarget);
+            }
+            return tText.toString();
+        }
+    }
+
+    private final Controller iController;
+    private final File iFile;
+    private final Timer iTimer = new Timer("WeeklyProgram", true);
+    private TimerTask iArmed;
+
+    //guarded by this, replaced as a whole by compile()
+    private List<Entry> iEntries = Collections.emptyList();
+    //entry in force at each minute of the week, NO_ENTRY if none
+    private byte[] iActive = new byte[MINUTES_PER_WEEK];
+    //minutes from each minute of the week to the next switch, 0 if none
+    private short[] iToNext = new short[MINUTES_PER_WEEK];
+
+    public WeeklyProgram(Controller aController, File aFile) {
+        iController = aController;
+        iFile = aFile;
+        Arrays.fill(iActive, NO_ENTRY);
+    }
+
+    /**
+     * Loads the saved program and arms the timer. The entry in force now is
+     * applied only if it switched after aStateTime, the time of the state
+     * the Controller restored (-1 if none): a switch missed while the power
+     * was off. Otherwise the Controller keeps the state it has.
+     */
+    public void start(long aStateTime) {
+        Entry tMissed = null;
+        synchronized (this) {
+            compile(load());
+            arm();
+            long tNow = System.currentTimeMillis();
+            if (getLastSwitch(tNow) > aStateTime) {
+                tMissed = getActive(tNow);
+            }
+        }
+        if (tMissed != null) {
+            System.out.println("WeeklyProgram: switch missed while off");
+            apply(tMissed);
+        }
+    }
+
+    public synchronized void stop() {
+        iTimer.cancel();
+        iArmed = null;
+    }
+
+    /**
+     * Adds aEntry, replacing one for the same days and minute.
+     */
+    public synchronized void add(Entry aEntry) {
+        List<Entry> tEntries = new ArrayList<Entry>(iEntries.size() + 1);
+        for (Entry tEntry : iEntries) {
+            if (tEntry.iDays != aEntry.iDays || tEntry.iMinute != aEntry.iMinute) {
+                tEntries.add(tEntry);
+            }
+        }
+        if (tEntries.size() >= MAX_ENTRIES) {
+            throw new IllegalArgumentException("Too many program entries");
+        }
+        tEntries.add(aEntry);
+        compile(tEntries);
+        save();
+        arm();
+    }
+
+    public synchronized void clear() {
+        compile(Collections.<Entry>emptyList());
+        save();
+        arm();
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return iEntries;
+    }
+
+    /**
+     * The entry in force at aTime, null if there is no program.
+     */
+    public synchronized Entry getActive(long aTime) {
+        byte tIndex = iActive[minuteOfWeek(aTime)];
+        return tIndex == NO_ENTRY ? null : iEntries.get(tIndex);
+    }
+
+    /**
+     * Time of the next switch after aTime, -1 if there is no program. The
+     * switch minute is counted in local time and set on a Calendar, so a DST
+     * change in between does not move it by an hour.
+     */
+    public synchronized long getNextSwitch(long aTime) {
+        int tMinuteOfWeek = minuteOfWeek(aTime);
+        int tToNext = iToNext[tMinuteOfWeek];
+        if (tToNext == 0) {
+            return -1;
+        }
+        int tTarget = tMinuteOfWeek + tToNext;
+        Calendar tCalendar = Calendar.getInstance();
+        tCalendar.setTimeInMillis(aTime);
+        tCalendar.add(Calendar.DAY_OF_MONTH, tTarget / MINUTES_PER_DAY - tMinuteOfWeek / MINUTES_PER_DAY);
+        tCalendar.set(Calendar.HOUR_OF_DAY, (tTarget % MINUTES_PER_DAY) / 60);
+        tCalendar.set(Calendar.MINUTE, tTarget % 60);
+        tCalendar.set(Calendar.SECOND, 0);
+        tCalendar.set(Calendar.MILLISECOND, 0);
+        long tNext = tCalendar.getTimeInMillis();
+        if (tNext <= aTime) {
+            //the repeated hour when the clocks go back: the same minute an hour on
+            tNext = aTime - aTime % 60000 + tToNext * 60000L;
+        }
+        return tNext;
+    }
+
+    /**
+     * Time of the switch to the entry in force at aTime, -1 if there is no
+     * program. Looked for on a Calendar, a day back at a time.
+     */
+    public synchronized long getLastSwitch(long aTime) {
+        byte tIndex = iActive[minuteOfWeek(aTime)];
+        if (tIndex == NO_ENTRY) {
+            return -1;
+        }
+        Entry tEntry = iEntries.get(tIndex);
+        Calendar tCalendar = Calendar.getInstance();
+        tCalendar.setTimeInMillis(aTime);
+        tCalendar.set(Calendar.HOUR_OF_DAY, tEntry.iMinute / 60);
+        tCalendar.set(Calendar.MINUTE, tEntry.iMinute % 60);
+        tCalendar.set(Calendar.SECOND, 0);
+        tCalendar.set(Calendar.MILLISECOND, 0);
+        //up to a week back, and the same day a week ago for a single day entry
+        for (int i = 0; i <= 7; i++) {
+            long tStart = tCalendar.getTimeInMillis();
+            int tMinuteOfWeek = minuteOfWeek(tStart);
+            if (tStart <= aTime && (tEntry.iDays & (1 << (tMinuteOfWeek / MINUTES_PER_DAY))) != 0
+                    && iActive[tMinuteOfWeek] == tIndex) {
+                return tStart;
+            }
+            tCalendar.add(Calendar.DAY_OF_MONTH, -1);
+            tCalendar.set(Calendar.HOUR_OF_DAY, tEntry.iMinute / 60);
+            tCalendar.set(Calendar.MINUTE, tEntry.iMinute % 60);
+        }
+        return -1;
+    }
+
+    /**
+     * The program and the next switch, for the SMS reply.
+     */
+    public synchronized String describe() {
+        if (iEntries.isEmpty()) {
+            return "No program";
+        }
+        StringBuilder tText = new StringBuilder("Program: ");
+        for (int i = 0; i < iEntries.size(); i++) {
+            tText.append(i == 0 ? "" : ", ").append(iEntries.get(i));
+        }
+        long tNow = System.currentTimeMillis();
+        long tNext = getNextSwitch(tNow);
+        if (tNext > 0) {
+            tText.append("\nNext: ").append(iEntries.get(iActive[minuteOfWeek(tNext)]));
+        }
+        return tText.toString();
+    }
+
+    /**
+     * Builds the minute tables. Entries later in aEntries win on the same
+     * minute.
+     */
+    private void compile(List<Entry> aEntries) {
+        byte[] tStarts = new byte[MINUTES_PER_WEEK];
+        Arrays.fill(tStarts, NO_ENTRY);
+        for (int i = 0; i < aEntries.size(); i++) {
+            Entry tEntry = aEntries.get(i);
+            for (int tDay = 0; tDay < 7; tDay++) {
+                if ((tEntry.iDays & (1 << tDay)) != 0) {
+                    tStarts[tDay * MINUTES_PER_DAY + tEntry.iMinute] = (byte) i;
+                }
+            }
+        }
+        byte[] tActive = new byte[MINUTES_PER_WEEK];
+        short[] tToNext = new short[MINUTES_PER_WEEK];
+        //twice round the week, so the start of the week sees the entries of its end
+        byte tCurrent = NO_ENTRY;
+        for (int m = 0; m < 2 * MINUTES_PER_WEEK; m++) {
+            int tMinute = m % MINUTES_PER_WEEK;
+            if (tStarts[tMinute] != NO_ENTRY) {
+                tCurrent = tStarts[tMinute];
+            }
+            tActive[tMinute] = tCurrent;
+        }
+        int tNextStart = -1;
+        for (int m = 2 * MINUTES_PER_WEEK - 1; m >= 0; m--) {
+            int tMinute = m % MINUTES_PER_WEEK;
+            if (tNextStart >= 0) {
+                tToNext[tMinute] = (short) (tNextStart - m);
+            }
+            if (tStarts[tMinute] != NO_ENTRY) {
+                tNextStart = m;
+            }
+        }
+        iEntries = Collections.unmodifiableList(new ArrayList<Entry>(aEntries));
+        iActive = tActive;
+        iToNext = tToNext;
+    }
+
+    private void arm() {
+        if (iArmed != null) {
+            iArmed.cancel();
+            iArmed = null;
+        }
+        long tNow = System.currentTimeMillis();
+        long tNext = getNextSwitch(tNow);
+        if (tNext < 0) {
+            return;
+        }
+        iArmed = new TimerTask() {
+            @Override
+            public void run() {
+                fire(this);
+            }
+        };
+        iTimer.schedule(iArmed, Math.max(0, tNext - tNow));
+    }
+
+    private void fire(TimerTask aTask) {
+        Entry tEntry;
+        synchronized (this) {
+            if (aTask != iArmed) {
+                //re-armed meanwhile
+                return;
+            }
+            //a few ms early or late still falls in the switch minute
+            tEntry = getActive(System.currentTimeMillis() + 1000);
+            arm();
+        }
+        if (tEntry != null) {
+            apply(tEntry);
+        }
+    }
+
+    private void apply(Entry aEntry) {
+        System.out.println("WeeklyProgram: " + aEntry);
+        try {
+            if (aEntry.iMode == Status.AUTO && !Double.isNaN(aEntry.iTarget)) {
+                iController.setTarget(aEntry.iTarget);
+            }
+            iController.setMode(aEntry.iMode);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * 0 is Monday 00:00, local time.
+     */
+    static int minuteOfWeek(long aTime) {
+        Calendar tCalendar = Calendar.getInstance();
+        tCalendar.setTimeInMillis(aTime);
+        int tDay = (tCalendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+        return tDay * MINUTES_PER_DAY + tCalendar.get(Calendar.HOUR_OF_DAY) * 60 + tCalendar.get(Calendar.MINUTE);
+    }
+
+    static String dayName(int aDays) {
+        if (aDays == DAILY) {
+            return "daily";
+        } else if (aDays == WEEKDAYS) {
+            return "weekdays";
+        } else if (aDays == WEEKEND) {
+            return "weekend";
+        }
+        StringBuilder tText = new StringBuilder();
+        for (int tDay = 0; tDay < 7; tDay++) {
+            if ((aDays & (1 << tDay)) != 0) {
+                tText.append(tText.length() == 0 ? "" : "+").append(DAY_NAMES[tDay]);
+            }
+        }
+        return tText.toString();
+    }
+
+    private void save() {
+        File tTemp = new File(iFile.getPath() + ".tmp");
+        try (BufferedWriter tWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tTemp), StandardCharsets.UTF_8))) {
+            for (Entry tEntry : iEntries) {
+                tWriter.write(tEntry.iDays + "\t" + tEntry.iMinute + "\t" + tEntry.iMode + "\t" + tEntry.iTarget);
+                tWriter.newLine();
+            }
+        } catch (IOException ex) {
+            System.out.println("WeeklyProgram: cannot write " + tTemp + ": " + ex.getMessage());
+            return;
+        }
+        if (!tTemp.renameTo(iFile)) {
+            iFile.delete();
+            if (!tTemp.renameTo(iFile)) {
+                System.out.println("WeeklyProgram: cannot replace " + iFile);
+            }
+        }
+    }
+
+    private List<Entry> load() {
+        List<Entry> tEntries = new ArrayList<Entry>();
+        if (!iFile.exists()) {
+            return tEntries;
+        }
+        try (BufferedReader tReader = new BufferedReader(new InputStreamReader(new FileInputStream(iFile), StandardCharsets.UTF_8))) {
+            String tLine;
+            while ((tLine = tReader.readLine()) != null && tEntries.size() < MAX_ENTRIES) {
+                String[] tFields = tLine.split("\t");
+                if (tFields.length < 4) {
+                    continue;
+                }
+                try {
+                    int tDays = Integer.parseInt(tFields[0]);
+                    int tMinute = Integer.parseInt(tFields[1]);
+                    if (tDays <= 0 || tDays > DAILY || tMinute < 0 || tMinute >= MINUTES_PER_DAY) {
+                        throw new IllegalArgumentException(tLine);
+                    }
+                    tEntries.add(new Entry(tDays, tMinute,
+                            Status.valueOf(tFields[2]), Double.parseDouble(tFields[3])));
+                } catch (IllegalArgumentException ex) {
+                    System.out.println("WeeklyProgram: skipping " + tLine);
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("WeeklyProgram: cannot read " + iFile + ": " + ex.getMessage());
+        }
+        return tEntries;
+    }
+
+}